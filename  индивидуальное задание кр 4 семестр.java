@@ -4,41 +4,87 @@ import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.OptionalDouble;
 import java.util.Stack;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 
 // Model
 class CalculatorModel {
-    private List<String> history = new ArrayList<>();
+    private HistoryStore history;
     private final String historyFilePath = "calculator_history.txt";
 
+    // Необязательный предел размера файла истории (-Dcalculator.history.maxBytes): при открытии сверх него
+    // удаляются самые старые записи. 0 - история хранится целиком
+    private static final long MAX_HISTORY_BYTES = Long.getLong("calculator.history.maxBytes", 0);
+
     public CalculatorModel() {
-        loadHistory();
+        openHistory();
+    }
+
+    // Модель с заданным хранилищем истории - например, new HistoryStore() без файла для замеров:
+    // файл истории пользователя не открывается и обработчик завершения не регистрируется
+    CalculatorModel(HistoryStore history) {
+        this.history = history;
     }
 
     public double calculate(String expression) {
         try {
             double result = evaluateExpression(expression);
-            history.add(expression + " = " + result);
-            saveHistory();
+            addHistory(expression + " = " + result);
             return result;
         } catch (Exception e) {
-            history.add(expression + " = Error: " + e.getMessage());
-            saveHistory();
+            addHistory(expression + " = Error: " + e.getMessage());
             throw new IllegalArgumentException("Invalid expression: " + e.getMessage());
         }
     }
 
+    // Запись добавляется в конец журнала - одна короткая запись независимо от размера истории
+    private void addHistory(String entry) {
+        history.append(entry);
+    }
+
     // Реализация алгоритма вычисления математического выражения
-    private double evaluateExpression(String expression) {
-        return shuntingYard(expression);
+    double evaluateExpression(String expression) {
+        return evaluateRPN(shuntingYard(expression));
     }
 
 
     //Shunting Yard Algorithm - Преобразование инфиксной нотации в постфиксную (RPN)
-    private double shuntingYard(String expression) {
+    String shuntingYard(String expression) {
         StringBuilder output = new StringBuilder();
         Stack<Character> operators = new Stack<>();
 
@@ -74,7 +120,7 @@ class CalculatorModel {
             output.append(operators.pop()).append(" ");
         }
 
-        return evaluateRPN(output.toString());
+        return output.toString();
     }
 
 
@@ -97,7 +143,7 @@ class CalculatorModel {
         }
     }
 
-    private double evaluateRPN(String rpnExpression) {
+    double evaluateRPN(String rpnExpression) {
         Stack<Double> stack = new Stack<>();
         String[] tokens = rpnExpression.split(" ");
 
@@ -144,40 +190,1124 @@ class CalculatorModel {
 
 
     public List<String> getHistory() {
-        return new ArrayList<>(history); // Возвращаем копию для безопасности
+        return history.asList(); // Представление только для чтения, записи читаются из файла по требованию
+    }
+
+    public int getHistorySize() {
+        return history.size();
     }
 
+    public String getHistoryEntry(int index) {
+        return history.get(index);
+    }
+
+    public List<String> getHistoryRange(int fromIndex, int toIndex) {
+        return history.range(fromIndex, toIndex);
+    }
+
+    // Дожидается, пока все добавленные записи будут зафиксированы на диске
     public void saveHistory() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(historyFilePath))) {
-            for (String entry : history) {
-                writer.println(entry);
-            }
+        try {
+            history.flush();
         } catch (IOException e) {
             System.err.println("Error saving history: " + e.getMessage());
         }
     }
 
-    private void loadHistory() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(historyFilePath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                history.add(line);
+    public void close() {
+        try {
+            history.close();
+        } catch (IOException e) {
+            System.err.println("Error closing history: " + e.getMessage());
+        }
+    }
+
+    private void openHistory() {
+        try {
+            history = new HistoryStore(new File(historyFilePath).toPath(), MAX_HISTORY_BYTES);
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close, "history-shutdown"));
+        } catch (IOException e) {
+            // История будет вестись только в памяти
+            System.err.println("Error opening history: " + e.getMessage());
+            history = new HistoryStore();
+        }
+    }
+
+    // Индексы - по возрастанию, как их отдает JList.getSelectedIndices()
+    // Ошибка выгрузки передается вызывающему - контроллер показывает ее пользователю
+    public void saveSelectedHistory(int[] selectedIndices, String filePath) throws IOException {
+        history.export(selectedIndices, new File(filePath).toPath());
+    }
+}
+
+// Журнал истории: записи только дописываются в конец файла через FileChannel, по строке на запись.
+// Фоновый поток забирает все накопившиеся записи и фиксирует их одним write + force (групповая фиксация),
+// поэтому стоимость добавления не зависит от размера истории. Рядом ведется индекс - конец каждой записи
+// как long; он не фиксируется отдельно и при открытии сверяется с данными и достраивается.
+// Оборванная при сбое последняя строка отбрасывается при открытии - других ненужных записей в журнале нет.
+// Если задан предел maxBytes (0 - без предела) и файл его превышает, при открытии удаляются самые старые
+// записи: остается около половины предела, файл подменяется атомарным переименованием.
+// Во время работы файл не подменяется - его читает HistoryStore через отображение
+class HistoryJournal implements Closeable {
+
+    private final Path file;
+    private final long maxBytes;
+    private FileChannel channel;
+    private FileChannel indexChannel;
+    private long initialSize;    // размер данных на момент открытия
+    private int initialEntries;  // записей в индексе на момент открытия
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition pendingAvailable = lock.newCondition();
+    private final Condition committed = lock.newCondition();
+    private List<String> pending = new ArrayList<>();
+    private long appendedCount;   // записей принято
+    private long committedCount;  // записей зафиксировано на диске
+    private boolean closed;
+    private IOException failure;
+    private final Thread writer;
+
+    public HistoryJournal(Path file, Path indexFile, long maxBytes) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            recover();
+            if (maxBytes > 0 && channel.size() > maxBytes) {
+                dropOldest();
+                Files.deleteIfExists(indexFile); // Смещения изменились, индекс строится заново
             }
+            indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            repairIndex();
         } catch (IOException e) {
-            // Файл может не существовать при первом запуске
-            System.err.println("History file not found, creating new one.");
+            channel.close();
+            if (indexChannel != null) {
+                indexChannel.close();
+            }
+            throw e;
+        }
+        initialSize = channel.size();
+        initialEntries = (int) (indexChannel.size() / Long.BYTES);
+        channel.position(initialSize);
+        indexChannel.position(indexChannel.size());
+
+        writer = new Thread(this::writeLoop, "history-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public long getInitialSize() {
+        return initialSize;
+    }
+
+    public int getInitialEntries() {
+        return initialEntries;
+    }
+
+    // Одна запись - одна строка: переводы строк заменяются пробелами. HistoryStore приводит запись
+    // к этому виду до того, как сохранить ее в памяти, чтобы после перезапуска она читалась так же
+    static String toLine(String entry) {
+        return entry.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    public void append(String line) {
+        if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("History entry must be a single line");
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("History journal is closed");
+            }
+            pending.add(line);
+            appendedCount++;
+            pendingAvailable.signal();
+        } finally {
+            lock.unlock();
         }
     }
 
-    public void saveSelectedHistory(List<Integer> selectedIndices, String filePath) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(filePath))) {
-            for (int index : selectedIndices) {
-                if (index >= 0 && index < history.size()) {
-                    writer.println(history.get(index));
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            long target = appendedCount;
+            while (committedCount < target && failure == null) {
+                committed.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pendingAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        indexChannel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<String> batch;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    pendingAvailable.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return; // Журнал закрыт, все записи зафиксированы
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                write(batch);
+            } catch (IOException e) {
+                System.err.println("Error saving history: " + e.getMessage());
+                lock.lock();
+                try {
+                    failure = e;
+                    committed.signalAll();
+                } finally {
+                    lock.unlock();
                 }
+                return;
             }
+
+            lock.lock();
+            try {
+                committedCount += batch.size();
+                committed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void write(List<String> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer ends = ByteBuffer.allocate(batch.size() * Long.BYTES);
+        long position = channel.position();
+        for (String line : batch) {
+            byte[] encoded = line.getBytes(StandardCharsets.UTF_8);
+            bytes.write(encoded, 0, encoded.length);
+            bytes.write('\n');
+            position += encoded.length + 1;
+            ends.putLong(position);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+
+        // Индекс пишется после данных: отстающий индекс достраивается при открытии
+        ends.flip();
+        while (ends.hasRemaining()) {
+            indexChannel.write(ends);
+        }
+    }
+
+    // Оставляет в индексе только записи, которые есть в файле данных, и добавляет недостающие
+    private void repairIndex() throws IOException {
+        long size = channel.size();
+        ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+
+        // Последнее смещение не больше размера данных (смещения возрастают)
+        long low = 0;
+        long high = indexChannel.size() / Long.BYTES;
+        while (low < high) {
+            long middle = (low + high + 1) >>> 1;
+            readFully(indexChannel, value, (middle - 1) * Long.BYTES, Long.BYTES);
+            if (value.getLong(0) <= size) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        long count = low;
+        long end = 0;
+        if (count > 0) {
+            readFully(indexChannel, value, (count - 1) * Long.BYTES, Long.BYTES);
+            end = value.getLong(0);
+            if (end <= 0 || readByte(value, end - 1) != '\n') {
+                count = 0; // Индекс не соответствует данным
+                end = 0;
+            }
+        }
+        indexChannel.truncate(count * Long.BYTES);
+
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        ByteBuffer ends = ByteBuffer.allocate(8192 * Long.BYTES);
+        long indexPosition = count * Long.BYTES;
+        for (long position = end; position < size; position += buffer.capacity()) {
+            int chunk = (int) Math.min(buffer.capacity(), size - position);
+            readFully(channel, buffer, position, chunk);
+            for (int i = 0; i < chunk; i++) {
+                if (buffer.get(i) == '\n') {
+                    if (!ends.hasRemaining()) {
+                        indexPosition = writeFully(ends, indexPosition);
+                    }
+                    ends.putLong(position + i + 1);
+                }
+            }
+        }
+        writeFully(ends, indexPosition);
+    }
+
+    private byte readByte(ByteBuffer buffer, long position) throws IOException {
+        readFully(channel, buffer, position, 1);
+        return buffer.get(0);
+    }
+
+    private long writeFully(ByteBuffer ends, long position) throws IOException {
+        ends.flip();
+        while (ends.hasRemaining()) {
+            position += indexChannel.write(ends, position);
+        }
+        ends.clear();
+        return position;
+    }
+
+    // Отбрасывает недописанную последнюю строку
+    private void recover() throws IOException {
+        long size = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long end = size;
+        while (end > 0) {
+            int chunk = (int) Math.min(buffer.capacity(), end);
+            readFully(channel, buffer, end - chunk, chunk);
+            for (int i = chunk - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    channel.truncate(end - chunk + i + 1);
+                    return;
+                }
+            }
+            end -= chunk;
+        }
+        channel.truncate(0);
+    }
+
+    private void dropOldest() throws IOException {
+        long size = channel.size();
+        long keepFrom = nextLineStart(size - maxBytes / 2);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = keepFrom;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, out);
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Начало первой строки, целиком лежащей после offset
+    private long nextLineStart(long offset) throws IOException {
+        long size = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (long position = Math.max(offset, 0); position < size; position += buffer.capacity()) {
+            int chunk = (int) Math.min(buffer.capacity(), size - position);
+            readFully(channel, buffer, position, chunk);
+            for (int i = 0; i < chunk; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+        }
+        return size;
+    }
+
+    private static void readFully(FileChannel source, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of history file");
+            }
+        }
+    }
+}
+
+// Хранилище истории. Записи прошлых сеансов читаются из отображенного в память файла по индексу смещений,
+// строка создается только для запрошенной записи - открытие не зависит от размера истории.
+// Записи текущего сеанса держатся в памяти и дописываются в файл журналом
+class HistoryStore implements Closeable {
+
+    private final Path file;       // null - хранилище без файла
+    private final Path indexFile;
+    private final HistoryJournal journal;
+    private final ByteBuffer data;
+    private final LongBuffer ends;  // конец каждой записи вместе с '\n'
+    private final int storedCount;
+    private final List<String> appended = new ArrayList<>();
+    private final Lock lock = new ReentrantLock();
+    private final List<String> view = new AbstractList<String>() {
+        @Override
+        public String get(int index) {
+            return HistoryStore.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return HistoryStore.this.size();
+        }
+    };
+
+    public HistoryStore(Path file, long maxBytes) throws IOException {
+        this.file = file;
+        this.indexFile = file.resolveSibling(file.getFileName() + ".idx");
+        journal = new HistoryJournal(file, indexFile, maxBytes);
+        try {
+            storedCount = journal.getInitialEntries();
+            data = map(file, journal.getInitialSize());
+            ends = map(indexFile, (long) storedCount * Long.BYTES).asLongBuffer();
         } catch (IOException e) {
-            System.err.println("Error saving selected history: " + e.getMessage());
+            journal.close();
+            throw e;
+        }
+    }
+
+    // Хранилище без файла
+    public HistoryStore() {
+        file = null;
+        indexFile = null;
+        journal = null;
+        data = ByteBuffer.allocate(0);
+        ends = LongBuffer.allocate(0);
+        storedCount = 0;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return storedCount + appended.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String get(int index) {
+        if (index >= 0 && index < storedCount) {
+            return read(index);
+        }
+        lock.lock();
+        try {
+            Objects.checkIndex(index, storedCount + appended.size());
+            return appended.get(index - storedCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<String> range(int fromIndex, int toIndex) {
+        Objects.checkFromToIndex(fromIndex, toIndex, size());
+        List<String> result = new ArrayList<>(toIndex - fromIndex);
+        for (int i = fromIndex; i < toIndex; i++) {
+            result.add(get(i));
+        }
+        return result;
+    }
+
+    public void append(String entry) {
+        String line = HistoryJournal.toLine(entry); // В памяти тот же вид, что в файле
+        lock.lock();
+        try {
+            appended.add(line);
+            if (journal != null) {
+                journal.append(line); // Под той же блокировкой, чтобы порядок в файле совпадал с порядком в памяти
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Выгружает записи с указанными индексами (по возрастанию) в файл, несуществующие индексы пропускаются.
+    // Подряд идущие записи прошлых сеансов берутся одним куском прямо из отображения файла;
+    // крупные куски пишутся в канал напрямую, мелкие и записи текущего сеанса - через общий буфер.
+    // Выгрузка идет во временный файл рядом с target и подменяет его атомарно: при ошибке прежний файл цел.
+    // Сам файл истории и его индекс целью быть не могут - они отображены в память и открыты журналом
+    public void export(int[] indices, Path target) throws IOException {
+        if (file != null && Files.exists(target)
+                && (Files.isSameFile(target, file) || Files.isSameFile(target, indexFile))) {
+            throw new IOException("Cannot export history into the history file itself: " + target);
+        }
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            write(indices, temp);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void write(int[] indices, Path target) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            int size = size();
+            for (int i = 0; i < indices.length; i++) {
+                int index = indices[i];
+                if (index < 0 || index >= size) {
+                    continue;
+                }
+                if (index < storedCount) {
+                    int last = index;
+                    while (i + 1 < indices.length && indices[i + 1] == last + 1 && last + 1 < storedCount) {
+                        last++;
+                        i++;
+                    }
+                    int start = index == 0 ? 0 : (int) ends.get(index - 1);
+                    ByteBuffer run = data.slice(start, (int) ends.get(last) - start);
+                    if (run.remaining() <= buffer.remaining()) {
+                        buffer.put(run); // Короткие куски копятся в буфере, чтобы не делать запись на каждый
+                    } else {
+                        drain(out, buffer);
+                        writeFully(out, run);
+                    }
+                } else {
+                    byte[] line = (get(index) + "\n").getBytes(StandardCharsets.UTF_8);
+                    if (line.length > buffer.remaining()) {
+                        drain(out, buffer);
+                    }
+                    if (line.length > buffer.capacity()) {
+                        writeFully(out, ByteBuffer.wrap(line));
+                    } else {
+                        buffer.put(line);
+                    }
+                }
+            }
+            drain(out, buffer);
+            out.force(true);
+        }
+    }
+
+    private static void drain(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(out, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    public void flush() throws IOException {
+        if (journal != null) {
+            journal.flush();
+        }
+    }
+
+    // Список только для чтения поверх хранилища, без копирования; всегда один и тот же объект
+    public List<String> asList() {
+        return view;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private String read(int index) {
+        int start = index == 0 ? 0 : (int) ends.get(index - 1);
+        int end = (int) ends.get(index) - 1;
+        if (end > start && data.get(end - 1) == '\r') {
+            end--; // Файлы, записанные прежней версией через println
+        }
+        byte[] bytes = new byte[end - start];
+        data.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer map(Path path, long length) throws IOException {
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("History file is too large: " + path);
+        }
+        // Отображение остается действительным после закрытия канала
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+}
+
+// Модель списка истории поверх хранилища: элементы читаются только для видимых строк,
+// а при обновлении сообщается лишь о добавленном в конец интервале
+class HistoryListModel extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient List<String> source = new ArrayList<>();
+    private int size; // размер, о котором уже знают слушатели
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return source.get(index);
+    }
+
+    public void update(List<String> history) {
+        if (history != source) {
+            int oldSize = size;
+            source = history;
+            size = 0;
+            if (oldSize > 0) {
+                fireIntervalRemoved(this, 0, oldSize - 1);
+            }
+        }
+        int newSize = source.size();
+        if (newSize > size) {
+            int first = size;
+            size = newSize;
+            fireIntervalAdded(this, first, newSize - 1);
+        } else if (newSize < size) {
+            int oldSize = size;
+            size = newSize;
+            fireIntervalRemoved(this, newSize, oldSize - 1);
+        }
+    }
+}
+
+// Сжатый двоичный формат истории. Записи группами по BLOCK_ENTRIES сжимаются Deflate в независимые блоки,
+// поэтому запись по номеру читается распаковкой одного блока. В конце файла лежат оглавление блоков и
+// индекс триграмм: для каждой последовательности из трех символов - набор блоков, где она встречается.
+// Поиск подстроки распаковывает только блоки, содержащие все ее триграммы.
+// Формат: MAGIC, блоки, оглавление (число блоков; смещение, первая запись, число записей, длины),
+// число записей, индекс (число триграмм; ключ, длина и слова BitSet), смещение оглавления, MAGIC
+class CompressedHistory implements Closeable {
+
+    static final int MAGIC = 0x43485A31; // "CHZ1"
+    static final int BLOCK_ENTRIES = 512;
+
+    private final FileChannel channel;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final int[] blockRawLengths;
+    private final int[] blockFirstEntries;
+    private final int entryCount;
+    private final Map<Long, BitSet> grams = new HashMap<>();
+    private final Inflater inflater = new Inflater();
+    private int cachedBlock = -1;
+    private String[] cachedEntries;
+
+    private CompressedHistory(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+        long size = channel.size();
+        if (size < Integer.BYTES + trailer.capacity()) {
+            throw new IOException("Not a compressed history file");
+        }
+        readFully(trailer, size - trailer.capacity());
+        long indexOffset = trailer.getLong(0);
+        if (trailer.getInt(Long.BYTES) != MAGIC || indexOffset < Integer.BYTES || indexOffset > size - trailer.capacity()) {
+            throw new IOException("Not a compressed history file");
+        }
+
+        ByteBuffer index = ByteBuffer.allocate((int) (size - trailer.capacity() - indexOffset));
+        readFully(index, indexOffset);
+        int blockCount = index.getInt();
+        blockOffsets = new long[blockCount];
+        blockLengths = new int[blockCount];
+        blockRawLengths = new int[blockCount];
+        blockFirstEntries = new int[blockCount + 1];
+        for (int i = 0; i < blockCount; i++) {
+            blockOffsets[i] = index.getLong();
+            blockFirstEntries[i] = index.getInt();
+            blockLengths[i] = index.getInt();
+            blockRawLengths[i] = index.getInt();
+        }
+        entryCount = index.getInt();
+        blockFirstEntries[blockCount] = entryCount;
+        int gramCount = index.getInt();
+        for (int i = 0; i < gramCount; i++) {
+            long key = index.getLong();
+            long[] words = new long[index.getInt()];
+            index.asLongBuffer().get(words);
+            index.position(index.position() + words.length * Long.BYTES);
+            grams.put(key, BitSet.valueOf(words));
+        }
+    }
+
+    public static CompressedHistory open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new CompressedHistory(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Записывает записи в сжатом формате, не держа в памяти больше одного блока
+    public static void write(Iterator<String> entries, Path target) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Deflater deflater = new Deflater();
+            List<long[]> blocks = new ArrayList<>(); // смещение, первая запись, длина, исходная длина
+            Map<Long, BitSet> grams = new HashMap<>();
+            StringBuilder block = new StringBuilder();
+            long[] blockGrams = new long[1024]; // триграммы текущего блока, в индекс попадают без повторов
+            int gramCount = 0;
+            byte[] compressed = new byte[64 * 1024];
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC);
+            header.flip();
+            writeFully(out, header);
+
+            int count = 0;
+            int inBlock = 0;
+            try {
+                while (entries.hasNext() || inBlock > 0) {
+                    if (entries.hasNext()) {
+                        String entry = entries.next().replace('\n', ' ');
+                        if (gramCount + entry.length() > blockGrams.length) {
+                            blockGrams = Arrays.copyOf(blockGrams, Math.max(blockGrams.length * 2, gramCount + entry.length()));
+                        }
+                        for (int i = 0; i + 3 <= entry.length(); i++) {
+                            blockGrams[gramCount++] = gramKey(entry, i);
+                        }
+                        block.append(entry).append('\n');
+                        inBlock++;
+                        count++;
+                        if (inBlock < BLOCK_ENTRIES && entries.hasNext()) {
+                            continue;
+                        }
+                    }
+                    byte[] raw = block.toString().getBytes(StandardCharsets.UTF_8);
+                    deflater.reset();
+                    deflater.setInput(raw);
+                    deflater.finish();
+                    long offset = out.position();
+                    while (!deflater.finished()) {
+                        int length = deflater.deflate(compressed);
+                        writeFully(out, ByteBuffer.wrap(compressed, 0, length));
+                    }
+                    Arrays.sort(blockGrams, 0, gramCount);
+                    for (int i = 0; i < gramCount; i++) {
+                        if (i == 0 || blockGrams[i] != blockGrams[i - 1]) {
+                            grams.computeIfAbsent(blockGrams[i], k -> new BitSet()).set(blocks.size());
+                        }
+                    }
+                    gramCount = 0;
+                    blocks.add(new long[]{offset, count - inBlock, out.position() - offset, raw.length});
+                    block.setLength(0);
+                    inBlock = 0;
+                }
+            } finally {
+                deflater.end();
+            }
+
+            long indexOffset = out.position();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(bytes);
+            index.writeInt(blocks.size());
+            for (long[] b : blocks) {
+                index.writeLong(b[0]);
+                index.writeInt((int) b[1]);
+                index.writeInt((int) b[2]);
+                index.writeInt((int) b[3]);
+            }
+            index.writeInt(count);
+            index.writeInt(grams.size());
+            for (Map.Entry<Long, BitSet> gram : grams.entrySet()) {
+                long[] words = gram.getValue().toLongArray();
+                index.writeLong(gram.getKey());
+                index.writeInt(words.length);
+                for (long word : words) {
+                    index.writeLong(word);
+                }
+            }
+            index.writeLong(indexOffset);
+            index.writeInt(MAGIC);
+            writeFully(out, ByteBuffer.wrap(bytes.toByteArray()));
+            out.force(true);
+        }
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    public String get(int index) throws IOException {
+        Objects.checkIndex(index, entryCount);
+        int block = blockOf(index);
+        return readBlock(block)[index - blockFirstEntries[block]];
+    }
+
+    // Номера записей, содержащих query, по возрастанию; не больше limit
+    public List<Integer> search(String query, int limit) throws IOException {
+        BitSet candidates = new BitSet();
+        candidates.set(0, blockOffsets.length);
+        for (int i = 0; i + 3 <= query.length() && !candidates.isEmpty(); i++) {
+            BitSet blocks = grams.get(gramKey(query, i));
+            if (blocks == null) {
+                return new ArrayList<>();
+            }
+            candidates.and(blocks);
+        }
+
+        List<Integer> result = new ArrayList<>();
+        for (int block = candidates.nextSetBit(0); block >= 0 && result.size() < limit; block = candidates.nextSetBit(block + 1)) {
+            String[] entries = readBlock(block);
+            for (int i = 0; i < entries.length && result.size() < limit; i++) {
+                if (entries[i].contains(query)) {
+                    result.add(blockFirstEntries[block] + i);
+                }
+            }
+        }
+        return result;
+    }
+
+    // Обратное преобразование: одна запись - одна строка
+    public void writeText(Path target) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+            for (int block = 0; block < blockOffsets.length; block++) {
+                for (String entry : readBlock(block)) {
+                    writer.write(entry);
+                    writer.write('\n');
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+    private int blockOf(int index) {
+        int block = Arrays.binarySearch(blockFirstEntries, 0, blockOffsets.length, index);
+        return block >= 0 ? block : -block - 2;
+    }
+
+    private String[] readBlock(int block) throws IOException {
+        if (block == cachedBlock) {
+            return cachedEntries;
+        }
+        ByteBuffer compressed = ByteBuffer.allocate(blockLengths[block]);
+        readFully(compressed, blockOffsets[block]);
+        byte[] raw = new byte[blockRawLengths[block]];
+        inflater.reset();
+        inflater.setInput(compressed.array());
+        try {
+            int length = 0;
+            while (length < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, length, raw.length - length);
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != raw.length) {
+                throw new IOException("Corrupted history block " + block);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted history block " + block, e);
+        }
+
+        String text = new String(raw, StandardCharsets.UTF_8);
+        String[] entries = new String[blockFirstEntries[block + 1] - blockFirstEntries[block]];
+        int start = 0;
+        for (int i = 0; i < entries.length; i++) {
+            int end = text.indexOf('\n', start);
+            entries[i] = text.substring(start, end);
+            start = end + 1;
+        }
+        cachedBlock = block;
+        cachedEntries = entries;
+        return entries;
+    }
+
+    private static long gramKey(String text, int i) {
+        return ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of compressed history");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
+
+// Преобразование истории между текстовым и сжатым форматом и поиск по сжатому файлу:
+// java HistoryConverter pack calculator_history.txt history.chz
+// java HistoryConverter unpack history.chz calculator_history.txt
+// java HistoryConverter search history.chz "2+2" [лимит]
+class HistoryConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: HistoryConverter pack|unpack|search <source> <target|query> [limit]");
+            return;
+        }
+        Path source = new File(args[1]).toPath();
+        long start = System.nanoTime();
+        switch (args[0]) {
+            case "pack":
+                try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+                    CompressedHistory.write(reader.lines().iterator(), new File(args[2]).toPath());
+                }
+                System.out.printf("Packed %d -> %d bytes%n", Files.size(source), Files.size(new File(args[2]).toPath()));
+                break;
+            case "unpack":
+                try (CompressedHistory history = CompressedHistory.open(source)) {
+                    history.writeText(new File(args[2]).toPath());
+                    System.out.printf("Unpacked %d entries%n", history.size());
+                }
+                break;
+            case "search":
+                try (CompressedHistory history = CompressedHistory.open(source)) {
+                    int limit = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+                    for (int index : history.search(args[2], limit)) {
+                        System.out.println(index + ": " + history.get(index));
+                    }
+                }
+                break;
+            default:
+                System.err.println("Unknown command: " + args[0]);
+                return;
+        }
+        System.out.printf("%.1f ms%n", (System.nanoTime() - start) / 1e6);
+    }
+}
+
+// Предпросмотр результата при вводе. Разбор тот же, что shuntingYard + evaluateRPN, но операторы применяются
+// сразу при выводе в RPN, а после каждой лексемы запоминается состояние (стеки неизменяемые, снимок - O(1)).
+// При следующем нажатии разбор продолжается с последнего снимка до места изменения, так что повторно
+// разбирается только измененный хвост выражения. Ошибка в уже разобранной части - ошибка всего выражения
+class LivePreview {
+
+    // Неизменяемые стеки значений и операторов, общие для всех снимков
+    private static final class Values {
+        final double value;
+        final Values next;
+        final int size;
+
+        Values(double value, Values next) {
+            this.value = value;
+            this.next = next;
+            this.size = next == null ? 1 : next.size + 1;
+        }
+    }
+
+    private static final class Operators {
+        final char operator;
+        final Operators next;
+
+        Operators(char operator, Operators next) {
+            this.operator = operator;
+            this.next = next;
+        }
+    }
+
+    // Состояние после лексемы, заканчивающейся перед end
+    private static final class Checkpoint {
+        final int end;
+        final Values values;
+        final Operators operators;
+        final boolean failed;
+
+        Checkpoint(int end, Values values, Operators operators, boolean failed) {
+            this.end = end;
+            this.values = values;
+            this.operators = operators;
+            this.failed = failed;
+        }
+    }
+
+    private final StringBuilder text = new StringBuilder(); // выражение без пробелов с прошлого нажатия
+    private final StringBuilder previous = new StringBuilder();
+    private final List<Checkpoint> checkpoints = new ArrayList<>();
+
+    public LivePreview() {
+        checkpoints.add(new Checkpoint(0, null, null, false));
+    }
+
+    // Те же символы, что \s в shuntingYard: иначе предпросмотр и Calculate разошлись бы на тексте
+    // с другими пробельными символами (U+001C-U+001F, пробелы Unicode)
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    // Значение выражения или пустой результат, если оно неполное или ошибочное
+    public OptionalDouble evaluate(String expression) {
+        previous.setLength(0);
+        previous.append(text);
+        text.setLength(0);
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (!isWhitespace(c)) {
+                text.append(c);
+            }
+        }
+
+        // Снимок переиспользуется, если следующий за ним символ не изменился - тогда и граница лексемы та же
+        int common = 0;
+        int limit = Math.min(text.length(), previous.length());
+        while (common < limit && text.charAt(common) == previous.charAt(common)) {
+            common++;
+        }
+        int last = checkpoints.size() - 1;
+        while (last > 0 && checkpoints.get(last).end >= common) {
+            checkpoints.remove(last--);
+        }
+
+        Checkpoint state = checkpoints.get(last);
+        while (state.end < text.length()) {
+            state = next(state);
+            checkpoints.add(state);
+        }
+        return finish(state);
+    }
+
+    private Checkpoint next(Checkpoint state) {
+        Values values = state.values;
+        Operators operators = state.operators;
+        int i = state.end;
+        char c = text.charAt(i);
+        if (state.failed) {
+            return new Checkpoint(i + 1, null, null, true);
+        }
+
+        if (Character.isDigit(c) || c == '.') {
+            int end = i;
+            while (end < text.length() && (Character.isDigit(text.charAt(end)) || text.charAt(end) == '.')) {
+                end++;
+            }
+            try {
+                return new Checkpoint(end, new Values(Double.parseDouble(text.substring(i, end)), values), operators, false);
+            } catch (NumberFormatException e) {
+                return new Checkpoint(end, null, null, true);
+            }
+        }
+        if (c == '(') {
+            return new Checkpoint(i + 1, values, new Operators(c, operators), false);
+        }
+        if (c == ')') {
+            while (operators != null && operators.operator != '(') {
+                values = apply(operators.operator, values);
+                if (values == null) {
+                    return new Checkpoint(i + 1, null, null, true);
+                }
+                operators = operators.next;
+            }
+            if (operators == null) {
+                return new Checkpoint(i + 1, null, null, true); // Нет парной '('
+            }
+            return new Checkpoint(i + 1, values, operators.next, false);
+        }
+        if (isOperator(c)) {
+            while (operators != null && operators.operator != '(' && precedence(c) <= precedence(operators.operator)) {
+                values = apply(operators.operator, values);
+                if (values == null) {
+                    return new Checkpoint(i + 1, null, null, true);
+                }
+                operators = operators.next;
+            }
+            return new Checkpoint(i + 1, values, new Operators(c, operators), false);
+        }
+        return new Checkpoint(i + 1, values, operators, false); // Прочие символы пропускаются, как в shuntingYard
+    }
+
+    private OptionalDouble finish(Checkpoint state) {
+        if (state.failed) {
+            return OptionalDouble.empty();
+        }
+        Values values = state.values;
+        for (Operators operators = state.operators; operators != null; operators = operators.next) {
+            if (operators.operator != '(') { // Незакрытая '(' в RPN не влияет на вычисление
+                values = apply(operators.operator, values);
+                if (values == null) {
+                    return OptionalDouble.empty();
+                }
+            }
+        }
+        return values != null && values.size == 1 ? OptionalDouble.of(values.value) : OptionalDouble.empty();
+    }
+
+    // Те же действия, что в evaluateRPN; null - ошибка
+    private static Values apply(char operator, Values values) {
+        if (values == null || values.size < 2) {
+            return null;
+        }
+        double operand2 = values.value;
+        double operand1 = values.next.value;
+        Values rest = values.next.next;
+        switch (operator) {
+            case '+':
+                return new Values(operand1 + operand2, rest);
+            case '-':
+                return new Values(operand1 - operand2, rest);
+            case '*':
+                return new Values(operand1 * operand2, rest);
+            case '/':
+                return operand2 == 0 ? null : new Values(operand1 / operand2, rest);
+            default:
+                return new Values(Math.pow(operand1, operand2), rest);
+        }
+    }
+
+    private static boolean isOperator(char c) {
+        return c == '+' || c == '-' || c == '*' || c == '/' || c == '^';
+    }
+
+    private static int precedence(char operator) {
+        switch (operator) {
+            case '+':
+            case '-':
+                return 1;
+            case '*':
+            case '/':
+                return 2;
+            case '^':
+                return 3;
+            default:
+                return 0;
         }
     }
 }
@@ -185,11 +1315,17 @@ class CalculatorModel {
 // View
 class CalculatorView extends JFrame {
 
+    private static final long serialVersionUID = 1L;
+
     private JTextField display;
+    private JLabel previewLabel;
+    private JCheckBox livePreviewBox;
     private JTextArea historyArea;
     private JButton calculateButton, saveHistoryButton, saveSelectedHistoryButton, exitButton;
     private JList<String> historyList;
-    private DefaultListModel<String> historyListModel;
+    private HistoryListModel historyListModel;
+    private int historyCellMinWidth;
+    private int historyCellPadding; // отступы отрисовщика вокруг текста
 
 
     public CalculatorView() {
@@ -200,7 +1336,12 @@ class CalculatorView extends JFrame {
 
         display = new JTextField();
         display.setHorizontalAlignment(JTextField.RIGHT);
-        add(display, BorderLayout.NORTH);
+        previewLabel = new JLabel(" ");
+        previewLabel.setHorizontalAlignment(JLabel.RIGHT);
+        JPanel displayPanel = new JPanel(new BorderLayout());
+        displayPanel.add(display, BorderLayout.CENTER);
+        displayPanel.add(previewLabel, BorderLayout.SOUTH);
+        add(displayPanel, BorderLayout.NORTH);
 
         JPanel buttonPanel = new JPanel();
         buttonPanel.setLayout(new GridLayout(4, 4));
@@ -224,9 +1365,34 @@ class CalculatorView extends JFrame {
         }
         add(buttonPanel, BorderLayout.CENTER);
 
-        historyListModel = new DefaultListModel<>();
+        historyListModel = new HistoryListModel();
         historyList = new JList<>(historyListModel);
+        // Высота строки и наименьшая ширина берутся по образцу, иначе JList при каждом изменении
+        // читает все элементы, чтобы измерить их. Ширина растет по мере добавления записей (widenHistoryCells)
+        historyList.setPrototypeCellValue("000000 * 000000 = 0000000000.0");
+        historyCellMinWidth = historyList.getFixedCellWidth();
+        historyCellPadding = historyCellMinWidth - textWidth(historyList.getPrototypeCellValue());
+        historyListModel.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                widenHistoryCells(e.getIndex0(), e.getIndex1());
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+                if (historyListModel.getSize() == 0) {
+                    historyList.setFixedCellWidth(historyCellMinWidth); // Новая история - ширина заново
+                }
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent e) {
+                widenHistoryCells(e.getIndex0(), e.getIndex1());
+            }
+        });
         JScrollPane historyScrollPane = new JScrollPane(historyList);
+        // Колонка истории сохраняет ширину образца, длинные записи прокручиваются по горизонтали
+        historyScrollPane.getViewport().setPreferredSize(historyList.getPreferredScrollableViewportSize());
         add(historyScrollPane, BorderLayout.EAST);
 
 
@@ -235,7 +1401,9 @@ class CalculatorView extends JFrame {
         saveHistoryButton = new JButton("Save History");
         saveSelectedHistoryButton = new JButton("Save Selected");
         exitButton = new JButton("Exit");
+        livePreviewBox = new JCheckBox("Preview", true);
 
+        controlPanel.add(livePreviewBox);
         controlPanel.add(calculateButton);
         controlPanel.add(saveHistoryButton);
         controlPanel.add(saveSelectedHistoryButton);
@@ -254,13 +1422,57 @@ class CalculatorView extends JFrame {
         display.setText(value);
     }
 
+    public boolean isLivePreview() {
+        return livePreviewBox.isSelected();
+    }
+
+    public void setPreview(String text) {
+        previewLabel.setText(text.isEmpty() ? " " : text); // Пустая метка схлопнулась бы по высоте
+    }
+
+    // Вызывается при каждом изменении текста выражения и при переключении предпросмотра
+    public void addExpressionChangeListener(Runnable listener) {
+        display.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                listener.run();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                listener.run();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                listener.run();
+            }
+        });
+        livePreviewBox.addActionListener(e -> listener.run());
+    }
+
     public void setHistory(List<String> history) {
-        historyListModel.clear();
-        for (String entry : history) {
-            historyListModel.addElement(entry);
+        historyListModel.update(history);
+    }
+
+    // Каждая запись измеряется один раз, когда попадает в список; ширина только растет
+    private void widenHistoryCells(int first, int last) {
+        if (first < 0) {
+            return;
+        }
+        int width = historyList.getFixedCellWidth();
+        for (int index = first; index <= last; index++) {
+            width = Math.max(width, textWidth(historyListModel.getElementAt(index)) + historyCellPadding);
+        }
+        if (width != historyList.getFixedCellWidth()) {
+            historyList.setFixedCellWidth(width);
         }
     }
 
+    private int textWidth(String text) {
+        return historyList.getFontMetrics(historyList.getFont()).stringWidth(text);
+    }
+
     public JList<String> getHistoryList() {
         return historyList;
     }
@@ -294,6 +1506,14 @@ class CalculatorController {
     private CalculatorModel model;
     private CalculatorView view;
 
+    // Вычисление и запись в файлы выполняются вне потока событий Swing, результаты публикуются через invokeLater
+    private final ExecutorService evaluator = Executors.newSingleThreadExecutor(r -> daemon(r, "calculator-evaluator"));
+    private final ExecutorService exporter = Executors.newSingleThreadExecutor(r -> daemon(r, "calculator-export"));
+    // Поля ниже используются только в потоке событий
+    private Future<?> pendingCalculation;
+    private long latestCalculation; // номер последнего запрошенного вычисления
+    private final LivePreview preview = new LivePreview();
+
     public CalculatorController(CalculatorModel model, CalculatorView view) {
         this.model = model;
         this.view = view;
@@ -305,20 +1525,67 @@ class CalculatorController {
         view.addSaveHistoryListener(e -> saveHistoryToFile());
         view.addSaveSelectedHistoryListener(e -> saveSelectedHistory());
         view.addExitListener(e -> exitApplication());
+        view.addExpressionChangeListener(this::updatePreview);
 
     }
 
 
     private void calculate() {
         String expression = view.getExpression();
-        try {
-            double result = model.calculate(expression);
-            view.setDisplay(String.valueOf(result));
-            updateViewFromModel();
-        } catch (IllegalArgumentException e) {
-            view.showMessage("Error: " + e.getMessage());
-            updateViewFromModel();
+        long calculation = ++latestCalculation;
+        if (pendingCalculation != null) {
+            pendingCalculation.cancel(false); // Устаревшее вычисление, которое еще не началось, не выполняется
         }
+        pendingCalculation = evaluator.submit(() -> {
+            try {
+                double result = model.calculate(expression);
+                publish(calculation, expression, () -> view.setDisplay(String.valueOf(result)));
+            } catch (IllegalArgumentException e) {
+                publish(calculation, expression, () -> view.showMessage("Error: " + e.getMessage()));
+            }
+        });
+    }
+
+    // Предпросмотр считается прямо в потоке событий: продолжение разбора с места правки занимает микросекунды
+    private void updatePreview() {
+        if (!view.isLivePreview()) {
+            view.setPreview("");
+            return;
+        }
+        OptionalDouble value = preview.evaluate(view.getExpression());
+        view.setPreview(value.isPresent() ? "= " + value.getAsDouble() : "");
+    }
+
+    // Результат показывается, только если он последний и пользователь не успел изменить выражение;
+    // список истории обновляется в любом случае - запись уже добавлена
+    private void publish(long calculation, String expression, Runnable update) {
+        SwingUtilities.invokeLater(() -> {
+            if (calculation == latestCalculation && expression.equals(view.getExpression())) {
+                update.run();
+            }
+            updateViewFromModel();
+        });
+    }
+
+    // Выгрузка выполняется в фоне, сообщение показывается после ее завершения
+    private void exportInBackground(int[] indices, File outputFile) {
+        exporter.execute(() -> {
+            String message;
+            try {
+                model.saveSelectedHistory(indices, outputFile.getAbsolutePath());
+                message = "History saved to: " + outputFile.getAbsolutePath();
+            } catch (Exception e) {
+                message = "Error saving history: " + e.getMessage();
+            }
+            String text = message;
+            SwingUtilities.invokeLater(() -> view.showMessage(text));
+        });
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
     }
 
     private void saveHistoryToFile() {
@@ -337,22 +1604,10 @@ class CalculatorController {
 
 
         if (fileName.contains(".")) {  // Указано имя файла с расширением
-            try {
-                File outputFile = new File(absolutePath);
-                model.saveSelectedHistory(getAllHistoryIndices(), absolutePath);
-                view.showMessage("History saved to: " + outputFile.getAbsolutePath());
-            } catch (Exception e) {
-                view.showMessage("Error saving history: " + e.getMessage());
-            }
+            exportInBackground(getAllHistoryIndices(), new File(absolutePath));
 
         } else if (parentPath != null) { //указан только путь сохранения
-            try {
-                File outputFile = new File(filePath, "log.log");
-                model.saveSelectedHistory(getAllHistoryIndices(), outputFile.getAbsolutePath());
-                view.showMessage("History saved to: " + outputFile.getAbsolutePath());
-            } catch (Exception e) {
-                view.showMessage("Error saving history: " + e.getMessage());
-            }
+            exportInBackground(getAllHistoryIndices(), new File(filePath, "log.log"));
 
         } else {
             view.showMessage("Invalid file path.  History сохранена в " + new File("calculator_history.txt").getAbsolutePath());
@@ -361,12 +1616,8 @@ class CalculatorController {
 
 
 
-    private List<Integer> getAllHistoryIndices() {
-        List<Integer> indices = new ArrayList<>();
-        for (int i = 0; i < model.getHistory().size(); i++) {
-            indices.add(i);
-        }
-        return indices;
+    private int[] getAllHistoryIndices() {
+        return IntStream.range(0, model.getHistorySize()).toArray();
     }
 
 
@@ -386,29 +1637,10 @@ class CalculatorController {
 
 
         if (fileName.contains(".")) {  // Указано имя файла с расширением
-            try {
-                File outputFile = new File(absolutePath);
-                List<Integer> selectedIndices = view.getHistoryList().getSelectedValuesList().stream()
-                        .map(model.getHistory()::indexOf)
-                        .toList();
-
-                model.saveSelectedHistory(selectedIndices, absolutePath);
-                view.showMessage("History saved to: " + outputFile.getAbsolutePath());
-            } catch (Exception e) {
-                view.showMessage("Error saving history: " + e.getMessage());
-            }
+            exportInBackground(view.getHistoryList().getSelectedIndices(), new File(absolutePath));
 
         } else if (parentPath != null) { //указан только путь сохранения
-            try {
-                File outputFile = new File(filePath, "log.log");
-                List<Integer> selectedIndices = view.getHistoryList().getSelectedValuesList().stream()
-                        .map(model.getHistory()::indexOf)
-                        .toList();
-                model.saveSelectedHistory(selectedIndices, outputFile.getAbsolutePath());
-                view.showMessage("History saved to: " + outputFile.getAbsolutePath());
-            } catch (Exception e) {
-                view.showMessage("Error saving history: " + e.getMessage());
-            }
+            exportInBackground(view.getHistoryList().getSelectedIndices(), new File(filePath, "log.log"));
 
         } else {
             view.showMessage("Invalid file path.");
@@ -417,8 +1649,32 @@ class CalculatorController {
 
 
 
+    // Ожидание фоновых задач идет вне потока событий, чтобы окно не зависало; пока оно идет,
+    // окно недоступно (новые задачи уже не принимаются), после него закрывается
     private void exitApplication() {
-        System.exit(0);
+        evaluator.shutdown();
+        exporter.shutdown();
+        view.setEnabled(false);
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                try {
+                    // Дать завершиться начатому вычислению и выгрузке
+                    evaluator.awaitTermination(5, TimeUnit.SECONDS);
+                    exporter.awaitTermination(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                model.close(); // Дописать в журнал последние записи
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                view.dispose();
+                System.exit(0);
+            }
+        }.execute();
     }
 
 
@@ -434,6 +1690,8 @@ interface ShowMessageInterface {
 
 class CalculatorViewWithDialogs extends CalculatorView implements ShowMessageInterface {
 
+    private static final long serialVersionUID = 1L;
+
     @Override
     public String showMessageInput(String message) {
         return JOptionPane.showInputDialog(this, message);
@@ -442,6 +1700,75 @@ class CalculatorViewWithDialogs extends CalculatorView implements ShowMessageInt
 
 
 
+// Замеры движка: задержка (нс/оп) и выделение памяти (байт/оп) для разбора в RPN, вычисления RPN
+// и их связки на коротком, длинном (до 500 символов) и глубоко вложенном выражении.
+// Запись истории на диск не замеряется, файл истории не открывается. Запуск: java CalculatorBenchmark [число итераций]
+class CalculatorBenchmark {
+
+    private static volatile double sink; // не дает JIT выбросить результат
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        CalculatorModel model = new CalculatorModel(new HistoryStore()); // Данные пользователя не трогаются
+
+        String[][] inputs = {
+                {"short", "2+3*4-10/4^2"},
+                {"long", longExpression()},
+                {"nested", nestedExpression()}
+        };
+        for (String[] input : inputs) {
+            String expression = input[1];
+            String rpn = model.shuntingYard(expression);
+            measure(input[0] + " parse", iterations, () -> model.shuntingYard(expression).length());
+            measure(input[0] + " evaluate", iterations, () -> model.evaluateRPN(rpn));
+            measure(input[0] + " end-to-end", iterations, () -> model.evaluateExpression(expression));
+        }
+    }
+
+    static void measure(String name, int iterations, DoubleSupplier operation) {
+        for (int i = 0; i < iterations; i++) { // прогрев JIT
+            sink = operation.getAsDouble();
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        double result = 0;
+        for (int i = 0; i < iterations; i++) {
+            result += operation.getAsDouble();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+        sink = result;
+
+        System.out.printf("%-20s %10.1f нс/оп %10.1f байт/оп%n", name, (double) elapsed / iterations, (double) bytes / iterations);
+    }
+
+    // Цепочка операций всех приоритетов длиной до 500 символов
+    static String longExpression() {
+        String[] operators = {"+", "*", "-", "/", "^"};
+        StringBuilder sb = new StringBuilder("1");
+        for (int i = 0; sb.length() < 490; i++) {
+            sb.append(operators[i % operators.length]).append(i % 9 + 1).append('.').append(i % 7);
+        }
+        return sb.toString();
+    }
+
+    static String nestedExpression() {
+        StringBuilder sb = new StringBuilder("1+");
+        for (int i = 0; i < 60; i++) {
+            sb.append('(');
+        }
+        sb.append('2');
+        for (int i = 0; i < 60; i++) {
+            sb.append(i % 2 == 0 ? "*3)" : "-1)");
+        }
+        return sb.append("+1").toString();
+    }
+}
+
+
+
 // Main Class
 public class Calculator {
 
@@ -1,8 +1,27 @@
 
 import .util.ArrayDeque;
-import java.util.Deque;
-import java.util.regex.Matcher;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public class Main {
 
@@ -15,50 +34,64 @@ public class Main {
 // Модель (Model)
 class CalculatorModel {
 
+    // Кэш скомпилированных выражений: повторяющиеся выражения не разбираются заново
+    private final CompiledExpressionCache cache;
+    private final Function<String, CompiledExpression> compiler = this::compile;
+
+    public CalculatorModel() {
+        this(new CompiledExpressionCache(4096, 1 << 20));
+    }
+
+    public CalculatorModel(CompiledExpressionCache cache) {
+        this.cache = cache;
+    }
+
     public double calculate(String expression) {
         try {
-            return evaluateExpression(expression);
+            return cache.get(expression, compiler).evaluate();
         } catch (Exception e) {
             return Double.NaN; //  возвращаем NaN в случае ошибки
         }
     }
 
-    private double evaluateExpression(String expression) {
-        expression = expression.replaceAll("\\s+", ""); // Убираем пробелы
-        if (!isValidExpression(expression)) {
-            throw new IllegalArgumentException("Некорректное выражение.");
-        }
-
-        expression = convertIntegerDivision(expression); // Replace '//' with a custom operator
-        return shuntingYard(expression);
+    // Вычисление в long с контролем переполнения; ошибки не превращаются в NaN, а выбрасываются
+    public long calculateLong(String expression) {
+        return cache.get(expression, compiler).evaluateLong();
     }
 
+    // Вычисление в BigDecimal с заданной точностью, например MathContext.DECIMAL128
+    public BigDecimal calculateExact(String expression, MathContext context) {
+        return cache.get(expression, compiler).evaluateDecimal(context);
+    }
 
-    private String convertIntegerDivision(String expression) {
-        // Регулярное выражение для поиска "//"
-        Pattern pattern = Pattern.compile("(\\d+)\\/\\/(\\d+)");
-        Matcher matcher = pattern.matcher(expression);
-        StringBuffer sb = new StringBuffer();
+    public CompiledExpressionCache getCache() {
+        return cache;
+    }
 
-        while (matcher.find()) {
-            String dividend = matcher.group(1);
-            String divisor = matcher.group(2);
-            // Заменяем "//" на вызов метода integerDivide
-            matcher.appendReplacement(sb, "integerDivide(" + dividend + "," + divisor + ")");
+    // Разбор выражения один раз: результат неизменяем и может вычисляться многократно из любых потоков.
+    // Имена переменных задают порядок значений при вычислении: compile("x*2+y^3", "x", "y")
+    public CompiledExpression compile(String expression, String... variables) {
+        expression = expression.replaceAll("\\s+", ""); // Убираем пробелы
+        if (!isValidExpression(expression, variables.length > 0)) {
+            throw new IllegalArgumentException("Некорректное выражение.");
         }
-        matcher.appendTail(sb);
 
-        return sb.toString();
+        return COMPILERS.get().compile(expression, variables);
     }
 
-    private boolean isValidExpression(String expression) {
-        // Уравнение должно начинаться и заканчиваться числом.
-        if (!Pattern.matches("^-?\\d+(\\.\\d+)?.*\\d+(\\.\\d+)?$", expression)) {
+    // Буферы разбора переиспользуются в пределах потока (в том числе рабочими потоками BatchCalculator)
+    private static final ThreadLocal<ExpressionCompiler> COMPILERS = ThreadLocal.withInitial(ExpressionCompiler::new);
+
+    private boolean isValidExpression(String expression, boolean withVariables) {
+        // Уравнение должно начинаться и заканчиваться числом (или переменной).
+        Pattern bounds = withVariables ? VARIABLE_BOUNDS_PATTERN : BOUNDS_PATTERN;
+        if (!bounds.matcher(expression).matches()) {
             return false;
         }
 
         // Проверка на допустимые символы
-        if (!Pattern.matches("^[0-9+\\-*/^().//]*$", expression)) {
+        Pattern chars = withVariables ? VARIABLE_CHARS_PATTERN : CHARS_PATTERN;
+        if (!chars.matcher(expression).matches()) {
             return false;
         }
 
@@ -70,100 +103,1361 @@ class CalculatorModel {
         return true;
     }
 
+    private static final Pattern BOUNDS_PATTERN = Pattern.compile("^-?\\d+(\\.\\d+)?.*\\d+(\\.\\d+)?$");
+    private static final Pattern CHARS_PATTERN = Pattern.compile("^[0-9+\\-*/^().//]*$");
+    private static final Pattern VARIABLE_BOUNDS_PATTERN =
+            Pattern.compile("^-?(\\d+(\\.\\d+)?|[A-Za-z_]\\w*)(.*(\\d+(\\.\\d+)?|[A-Za-z_]\\w*))?$");
+    private static final Pattern VARIABLE_CHARS_PATTERN = Pattern.compile("^[0-9A-Za-z_+\\-*/^().]*$");
+
+    // Деление нацело
+    public int integerDivide(int a, int b) {
+        if (b == 0) {
+            throw new ArithmeticException("Деление на ноль.");
+        }
+        return a / b;
+    }
+
+}
 
-    private double shuntingYard(String expression) {
-        Deque<Double> numbers = new ArrayDeque<>();
-        Deque<String> operators = new ArrayDeque<>();
 
-        Pattern tokenPattern = Pattern.compile("([+\\-*/^()]|integerDivide\\(\\d+,\\d+\\)|\\d+(\\.\\d+)?)");
-        Matcher matcher = tokenPattern.matcher(expression);
+// Компилятор выражений: сортировочная станция за один проход по символам.
+// Результат - программа в обратной польской записи для CompiledExpression (или ExactProgram).
+// Буферы растут до самого длинного выражения и переиспользуются; экземпляр не потокобезопасен
+final class ExpressionCompiler {
 
-        while (matcher.find()) {
-            String token = matcher.group(1);
+    private String expression;
+    private String[] variables;
+    private byte[] code = new byte[64];
+    private double[] operands = new double[64];
+    private int[] literalStarts = new int[64];   // границы текста литерала для точных режимов
+    private int[] literalEnds = new int[64];
+    private char[] operators = new char[64];
+    private int size;
+    private int depth;    // глубина стека чисел при выполнении программы
 
-            if (Pattern.matches("\\d+(\\.\\d+)?", token)) {
-                numbers.push(Double.parseDouble(token));
-            } else if (token.equals("(")) {
-                operators.push(token);
-            } else if (token.equals(")")) {
-                while (!operators.isEmpty() && !operators.peek().equals("(")) {
-                    numbers.push(applyOperator(operators.pop(), numbers.pop(), numbers.pop()));
+    CompiledExpression compile(String expression, String... variables) {
+        parse(expression, variables);
+        return new ExpressionOptimizer().optimize(this.expression, this.variables, code, operands, size);
+    }
+
+    // Программа без оптимизаций double: константы берутся из исходного текста литералов
+    ExactProgram compileExact(String expression, String... variables) {
+        parse(expression, variables);
+        BigDecimal[] constants = new BigDecimal[size];
+        long[] indexes = new long[size];
+        for (int pc = 0; pc < size; pc++) {
+            if (code[pc] == CompiledExpression.PUSH) {
+                constants[pc] = new BigDecimal(expression.substring(literalStarts[pc], literalEnds[pc]));
+            } else if (code[pc] == CompiledExpression.LOAD) {
+                indexes[pc] = (long) operands[pc];
+            }
+        }
+        return new ExactProgram(Arrays.copyOf(code, size), indexes, constants);
+    }
+
+    private void parse(String expression, String[] variables) {
+        for (String variable : variables) {
+            if (!isIdentifier(variable)) {
+                throw new IllegalArgumentException("Некорректное имя переменной: " + variable);
+            }
+        }
+        int length = expression.length();
+        if (code.length < length) {
+            code = new byte[length];
+            operands = new double[length];
+            literalStarts = new int[length];
+            literalEnds = new int[length];
+            operators = new char[length];
+        }
+        this.expression = expression;
+        this.variables = variables.clone();
+        size = 0;
+        depth = 0;
+
+        int top = 0;
+
+        int i = 0;
+        while (i < length) {
+            char c = expression.charAt(i);
+
+            if (isDigit(c)) {
+                int start = i;
+                i = skipDigits(i);
+                if (isIntegerDivision(i)) {
+                    // "a//b" над целыми литералами - деление нацело, как integerDivide
+                    emitConstant(start, i);
+                    int divisorStart = i + 2;
+                    i = skipDigits(divisorStart);
+                    emitConstant(divisorStart, i);
+                    emitOperator(CompiledExpression.IDIV);
+                    continue;
                 }
-                operators.pop(); // Удаляем открывающую скобку
-            } else if (isOperator(token)) {
-                while (!operators.isEmpty() && hasPrecedence(token, operators.peek())) {
-                    numbers.push(applyOperator(operators.pop(), numbers.pop(), numbers.pop()));
+                if (i + 1 < length && expression.charAt(i) == '.' && isDigit(expression.charAt(i + 1))) {
+                    int fractionEnd = skipDigits(i + 1);
+                    // Цифры перед "//" - делимое "a//b", а не дробная часть: точка тогда пропускается
+                    if (!isIntegerDivision(fractionEnd)) {
+                        i = fractionEnd;
+                    }
                 }
-                operators.push(token);
-            } else if (token.startsWith("integerDivide")) {
-                //Вызов integerDivide обрабатывается сразу же.
-                Pattern integerDividePattern = Pattern.compile("integerDivide\\((\\d+),(\\d+)\\)");
-                Matcher integerDivideMatcher = integerDividePattern.matcher(token);
-                if (integerDivideMatcher.find()) {
-                    int num1 = Integer.parseInt(integerDivideMatcher.group(1));
-                    int num2 = Integer.parseInt(integerDivideMatcher.group(2));
-                    numbers.push((double) integerDivide(num1, num2));
-                } else {
-                    throw new IllegalArgumentException("Некорректный формат integerDivide.");
+                emitConstant(start, i);
+                continue;
+            }
+
+            if (isIdentifierStart(c)) {
+                int start = i;
+                while (i < length && isIdentifierPart(expression.charAt(i))) {
+                    i++;
                 }
+                emitVariable(variableIndex(expression.substring(start, i)));
+                continue;
+            }
 
+            if (c == '(') {
+                operators[top++] = c;
+            } else if (c == ')') {
+                while (top > 0 && operators[top - 1] != '(') {
+                    emitOperator(opcode(operators[--top]));
+                }
+                if (top == 0) {
+                    throw new IllegalArgumentException("Несбалансированные скобки.");
+                }
+                top--; // Удаляем открывающую скобку
+            } else if (precedence(c) > 0) {
+                while (top > 0 && operators[top - 1] != '(' && precedence(operators[top - 1]) >= precedence(c)) {
+                    emitOperator(opcode(operators[--top]));
+                }
+                operators[top++] = c;
             }
+            // Прочие символы (одиночная точка) пропускаются, как и раньше при поиске токенов
+            i++;
         }
 
-        while (!operators.isEmpty()) {
-            numbers.push(applyOperator(operators.pop(), numbers.pop(), numbers.pop()));
+        while (top > 0) {
+            char operator = operators[--top];
+            if (operator == '(') {
+                throw new IllegalArgumentException("Несбалансированные скобки.");
+            }
+            emitOperator(opcode(operator));
         }
 
-        if (numbers.size() != 1) {
+        if (depth != 1) {
             throw new IllegalArgumentException("Некорректное выражение.");
         }
+    }
+
+    private boolean isIntegerDivision(int i) {
+        return expression.startsWith("//", i) && i + 2 < expression.length() && isDigit(expression.charAt(i + 2));
+    }
+
+    private int skipDigits(int i) {
+        while (i < expression.length() && isDigit(expression.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
 
-        return numbers.pop();
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 
+    private static boolean isIdentifierStart(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+    }
 
-    private boolean isOperator(String token) {
-        return token.equals("+") || token.equals("-") || token.equals("*") || token.equals("/") || token.equals("^");
+    private static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || isDigit(c);
     }
 
-    private boolean hasPrecedence(String op1, String op2) {
-        if (op2.equals("(") || op2.equals(")")) {
+    private static boolean isIdentifier(String name) {
+        if (name.isEmpty() || !isIdentifierStart(name.charAt(0))) {
             return false;
         }
-        if ((op1.equals("^")) && (op2.equals("*") || op2.equals("/") || op2.equals("+") || op2.equals("-"))) return false;
-        if ((op1.equals("*") || op1.equals("/")) && (op2.equals("+") || op2.equals("-"))) return false;
+        for (int i = 1; i < name.length(); i++) {
+            if (!isIdentifierPart(name.charAt(i))) {
+                return false;
+            }
+        }
         return true;
     }
 
+    private int variableIndex(String name) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Неизвестная переменная: " + name);
+    }
 
-    private double applyOperator(String operator, double b, double a) {
+    private static int precedence(char operator) {
         switch (operator) {
-            case "+":
+            case '+':
+            case '-':
+                return 1;
+            case '*':
+            case '/':
+                return 2;
+            case '^':
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    private static byte opcode(char operator) {
+        switch (operator) {
+            case '+':
+                return CompiledExpression.ADD;
+            case '-':
+                return CompiledExpression.SUB;
+            case '*':
+                return CompiledExpression.MUL;
+            case '/':
+                return CompiledExpression.DIV;
+            case '^':
+                return CompiledExpression.POW;
+            default:
+                throw new IllegalArgumentException("Неизвестный оператор: " + operator);
+        }
+    }
+
+    private void emitConstant(int start, int end) {
+        code[size] = CompiledExpression.PUSH;
+        operands[size] = Double.parseDouble(expression.substring(start, end));
+        literalStarts[size] = start;
+        literalEnds[size++] = end;
+        depth++;
+    }
+
+    private void emitVariable(int index) {
+        code[size] = CompiledExpression.LOAD;
+        operands[size++] = index;
+        depth++;
+    }
+
+    private void emitOperator(byte opcode) {
+        if (depth < 2) {
+            throw new IllegalArgumentException("Некорректное выражение.");
+        }
+        code[size++] = opcode;
+        depth--;
+    }
+}
+
+
+// Программа выражения для точных режимов: без оптимизаций double, константы - исходные литералы.
+// У каждого режима свой цикл вычисления, режим double эту программу не использует
+final class ExactProgram {
+
+    private final byte[] code;
+    private final long[] indexes;          // индексы переменных для LOAD
+    private final BigDecimal[] constants;  // литералы для PUSH
+    private final long[] longConstants;    // те же литералы, если все они целые
+    private final int maxStack;
+
+    ExactProgram(byte[] code, long[] indexes, BigDecimal[] constants) {
+        this.code = code;
+        this.indexes = indexes;
+        this.constants = constants;
+        this.longConstants = toLongs(code, constants);
+
+        int depth = 0;
+        int max = 0;
+        for (byte op : code) {
+            depth += op == CompiledExpression.PUSH || op == CompiledExpression.LOAD ? 1 : -1;
+            max = Math.max(max, depth);
+        }
+        this.maxStack = max;
+    }
+
+    private static long[] toLongs(byte[] code, BigDecimal[] constants) {
+        long[] result = new long[code.length];
+        for (int pc = 0; pc < code.length; pc++) {
+            if (code[pc] == CompiledExpression.PUSH) {
+                try {
+                    result[pc] = constants[pc].longValueExact();
+                } catch (ArithmeticException e) {
+                    return null; // Дробный или слишком большой литерал - режим long недоступен
+                }
+            }
+        }
+        return result;
+    }
+
+    long evaluateLong(long[] values) {
+        if (longConstants == null) {
+            throw new ArithmeticException("Выражение содержит нецелые числа или числа вне диапазона long.");
+        }
+        long[] stack = new long[maxStack];
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            byte op = code[pc];
+            if (op == CompiledExpression.PUSH) {
+                stack[sp++] = longConstants[pc];
+                continue;
+            }
+            if (op == CompiledExpression.LOAD) {
+                stack[sp++] = values[(int) indexes[pc]];
+                continue;
+            }
+
+            long b = stack[--sp];
+            long a = stack[sp - 1];
+            switch (op) {
+                case CompiledExpression.ADD:
+                    stack[sp - 1] = Math.addExact(a, b);
+                    break;
+                case CompiledExpression.SUB:
+                    stack[sp - 1] = Math.subtractExact(a, b);
+                    break;
+                case CompiledExpression.MUL:
+                    stack[sp - 1] = Math.multiplyExact(a, b);
+                    break;
+                case CompiledExpression.DIV:
+                    if (b != 0 && a % b != 0) {
+                        throw new ArithmeticException("Результат деления не целый: " + a + "/" + b);
+                    }
+                    stack[sp - 1] = divide(a, b);
+                    break;
+                case CompiledExpression.IDIV:
+                    stack[sp - 1] = divide(a, b);
+                    break;
+                case CompiledExpression.POW:
+                    stack[sp - 1] = power(a, b);
+                    break;
+                default:
+                    throw new IllegalStateException("Неизвестная команда: " + op);
+            }
+        }
+        return stack[0];
+    }
+
+    private static long divide(long a, long b) {
+        if (b == 0) {
+            throw new ArithmeticException("Деление на ноль.");
+        }
+        if (a == Long.MIN_VALUE && b == -1) {
+            throw new ArithmeticException("long overflow");
+        }
+        return a / b;
+    }
+
+    private static long power(long base, long exponent) {
+        if (exponent < 0) {
+            throw new ArithmeticException("Отрицательная степень в целочисленном режиме.");
+        }
+        long result = 1;
+        while (exponent > 0) {
+            if ((exponent & 1) != 0) {
+                result = Math.multiplyExact(result, base);
+            }
+            exponent >>= 1;
+            if (exponent > 0) {
+                base = Math.multiplyExact(base, base);
+            }
+        }
+        return result;
+    }
+
+    BigDecimal evaluateDecimal(MathContext context, BigDecimal[] values) {
+        BigDecimal[] stack = new BigDecimal[maxStack];
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            byte op = code[pc];
+            if (op == CompiledExpression.PUSH) {
+                stack[sp++] = constants[pc];
+                continue;
+            }
+            if (op == CompiledExpression.LOAD) {
+                stack[sp++] = values[(int) indexes[pc]];
+                continue;
+            }
+
+            BigDecimal b = stack[--sp];
+            BigDecimal a = stack[sp - 1];
+            switch (op) {
+                case CompiledExpression.ADD:
+                    stack[sp - 1] = a.add(b, context);
+                    break;
+                case CompiledExpression.SUB:
+                    stack[sp - 1] = a.subtract(b, context);
+                    break;
+                case CompiledExpression.MUL:
+                    stack[sp - 1] = a.multiply(b, context);
+                    break;
+                case CompiledExpression.DIV:
+                    checkDivisor(b);
+                    stack[sp - 1] = a.divide(b, context);
+                    break;
+                case CompiledExpression.IDIV:
+                    checkDivisor(b);
+                    stack[sp - 1] = a.divideToIntegralValue(b, context);
+                    break;
+                case CompiledExpression.POW:
+                    int exponent;
+                    try {
+                        exponent = b.intValueExact();
+                    } catch (ArithmeticException e) {
+                        throw new ArithmeticException("Степень должна быть целой в режиме BigDecimal: " + b);
+                    }
+                    stack[sp - 1] = a.pow(exponent, context);
+                    break;
+                default:
+                    throw new IllegalStateException("Неизвестная команда: " + op);
+            }
+        }
+        return stack[0];
+    }
+
+    private static void checkDivisor(BigDecimal divisor) {
+        if (divisor.signum() == 0) {
+            throw new ArithmeticException("Деление на ноль.");
+        }
+    }
+}
+
+
+// Программа выражения, переведенная в байт-код
+interface ExpressionKernel {
+    double apply(double[] values);
+}
+
+// Генерация скрытого класса (Lookup.defineHiddenClass), реализующего ExpressionKernel
+// прямолинейным байт-кодом без ветвлений: HotSpot встраивает его в место вызова как обычный метод.
+// Деление и деление нацело вызывают те же проверки, что и интерпретатор
+final class KernelGenerator {
+
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolSize = 1;
+
+    static ExpressionKernel generate(byte[] code, double[] operands, int maxStack) throws ReflectiveOperationException, IOException {
+        byte[] bytes = new KernelGenerator().classFile(code, operands, maxStack);
+        Class<?> type = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+        return (ExpressionKernel) type.getDeclaredConstructor().newInstance();
+    }
+
+    private byte[] classFile(byte[] code, double[] operands, int maxStack) throws IOException {
+        int thisClass = classRef("GeneratedKernel");
+        int superClass = classRef("java/lang/Object");
+        int kernelInterface = classRef("ExpressionKernel");
+        int objectInit = methodRef(superClass, "<init>", "()V");
+        int divide = methodRef(classRef("CompiledExpression"), "divide", "(DD)D");
+        int integerDivide = methodRef(classRef("CompiledExpression"), "integerDivide", "(DD)D");
+        int pow = methodRef(classRef("java/lang/Math"), "pow", "(DD)D");
+        int init = utf8("<init>");
+        int initType = utf8("()V");
+        int apply = utf8("apply");
+        int applyType = utf8("([D)D");
+        int codeAttribute = utf8("Code");
+
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                case CompiledExpression.PUSH:
+                    body.writeByte(0x14); // ldc2_w
+                    body.writeShort(doubleConstant(operands[pc]));
+                    break;
+                case CompiledExpression.LOAD:
+                    body.writeByte(0x2b); // aload_1
+                    body.writeByte(0x11); // sipush
+                    body.writeShort((int) operands[pc]);
+                    body.writeByte(0x31); // daload
+                    break;
+                case CompiledExpression.DUP:
+                    body.writeByte(0x5c); // dup2
+                    break;
+                case CompiledExpression.ADD:
+                    body.writeByte(0x63); // dadd
+                    break;
+                case CompiledExpression.SUB:
+                    body.writeByte(0x67); // dsub
+                    break;
+                case CompiledExpression.MUL:
+                    body.writeByte(0x6b); // dmul
+                    break;
+                case CompiledExpression.DIV:
+                    invokeStatic(body, divide);
+                    break;
+                case CompiledExpression.POW:
+                    invokeStatic(body, pow);
+                    break;
+                case CompiledExpression.IDIV:
+                    invokeStatic(body, integerDivide);
+                    break;
+                default:
+                    throw new IllegalStateException("Неизвестная команда: " + code[pc]);
+            }
+        }
+        body.writeByte(0xaf); // dreturn
+        if (body.size() > MAX_CODE_LENGTH) {
+            throw new IllegalStateException("Слишком длинная программа: " + body.size() + " байт");
+        }
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(classBytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(52); // Java 8: прямолинейному коду не нужна таблица StackMapTable
+        out.writeShort(poolSize);
+        out.write(poolBytes.toByteArray());
+        out.writeShort(0x0031); // public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(kernelInterface);
+        out.writeShort(0); // полей нет
+        out.writeShort(2);
+
+        // public GeneratedKernel() { super(); }
+        out.writeShort(0x0001);
+        out.writeShort(init);
+        out.writeShort(initType);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + 5);
+        out.writeShort(1); // max_stack
+        out.writeShort(1); // max_locals
+        out.writeInt(5);
+        out.writeByte(0x2a); // aload_0
+        invokeSpecial(out, objectInit);
+        out.writeByte(0xb1); // return
+        out.writeShort(0);
+        out.writeShort(0);
+
+        // public double apply(double[] values)
+        out.writeShort(0x0001);
+        out.writeShort(apply);
+        out.writeShort(applyType);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + body.size());
+        out.writeShort(2 * maxStack + 2); // double занимает две ячейки, плюс массив и индекс при LOAD
+        out.writeShort(2);
+        out.writeInt(body.size());
+        out.write(bodyBytes.toByteArray());
+        out.writeShort(0);
+        out.writeShort(0);
+
+        out.writeShort(0); // атрибутов класса нет
+        return classBytes.toByteArray();
+    }
+
+    private static void invokeStatic(DataOutputStream body, int method) throws IOException {
+        body.writeByte(0xb8);
+        body.writeShort(method);
+    }
+
+    private static void invokeSpecial(DataOutputStream body, int method) throws IOException {
+        body.writeByte(0xb7);
+        body.writeShort(method);
+    }
+
+    private int utf8(String value) throws IOException {
+        Integer index = poolIndex.get("U" + value);
+        if (index != null) {
+            return index;
+        }
+        pool.writeByte(1);
+        pool.writeUTF(value);
+        return register("U" + value, 1);
+    }
+
+    private int classRef(String name) throws IOException {
+        int nameIndex = utf8(name);
+        Integer index = poolIndex.get("C" + name);
+        if (index != null) {
+            return index;
+        }
+        pool.writeByte(7);
+        pool.writeShort(nameIndex);
+        return register("C" + name, 1);
+    }
+
+    private int methodRef(int owner, String name, String descriptor) throws IOException {
+        Integer index = poolIndex.get("M" + owner + name + descriptor);
+        if (index != null) {
+            return index;
+        }
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(descriptor);
+        pool.writeByte(12); // NameAndType
+        pool.writeShort(nameIndex);
+        pool.writeShort(typeIndex);
+        int nameAndType = register("N" + owner + name + descriptor, 1);
+        pool.writeByte(10); // Methodref
+        pool.writeShort(owner);
+        pool.writeShort(nameAndType);
+        return register("M" + owner + name + descriptor, 1);
+    }
+
+    private int doubleConstant(double value) throws IOException {
+        String key = "D" + Double.doubleToRawLongBits(value);
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        pool.writeByte(6);
+        pool.writeDouble(value);
+        return register(key, 2); // double занимает две записи пула
+    }
+
+    private int register(String key, int slots) {
+        int index = poolSize;
+        poolIndex.put(key, index);
+        poolSize += slots;
+        return index;
+    }
+}
+
+
+// Оптимизация программы между разбором и вычислением:
+// - свертка константных подвыражений, в том числе деления нацело литералов;
+// - x^2 -> x*x, а также x^1, x*1, 1*x, x/1 -> x (результат совпадает побитно).
+// Деление на константный ноль и деление нацело чисел вне int не сворачиваются,
+// чтобы ошибка возникала при вычислении, как раньше
+final class ExpressionOptimizer {
+
+    private byte[] code;
+    private double[] operands;
+    private int size;
+
+    // Начала подпрограмм, вычисляющих значения на стеке
+    private int[] starts;
+    private int depth;
+
+    CompiledExpression optimize(String expression, String[] variables, byte[] source, double[] sourceOperands, int length) {
+        code = new byte[length];
+        operands = new double[length];
+        starts = new int[length];
+
+        for (int pc = 0; pc < length; pc++) {
+            byte op = source[pc];
+            if (op == CompiledExpression.PUSH || op == CompiledExpression.LOAD) {
+                starts[depth++] = size;
+                emit(op, sourceOperands[pc]);
+            } else {
+                binary(op);
+            }
+        }
+
+        return new CompiledExpression(expression, variables, Arrays.copyOf(code, size), Arrays.copyOf(operands, size), maxStack());
+    }
+
+    private void binary(byte op) {
+        int left = starts[depth - 2];
+        int right = starts[depth - 1];
+        depth--;
+
+        if (isConstant(left, right) && isConstant(right, size) && canFold(op, operands[left], operands[right])) {
+            double value = fold(op, operands[left], operands[right]);
+            size = left;
+            emit(CompiledExpression.PUSH, value);
+            return;
+        }
+
+        if (isConstant(right, size)) {
+            double b = operands[right];
+            if (op == CompiledExpression.POW && b == 2) {
+                size = right;
+                emit(CompiledExpression.DUP, 0);
+                emit(CompiledExpression.MUL, 0);
+                return;
+            }
+            if (b == 1 && (op == CompiledExpression.POW || op == CompiledExpression.MUL || op == CompiledExpression.DIV)) {
+                size = right;
+                return;
+            }
+        }
+
+        if (op == CompiledExpression.MUL && isConstant(left, right) && operands[left] == 1) {
+            // Убираем множитель 1 и сдвигаем правый операнд на его место
+            System.arraycopy(code, right, code, left, size - right);
+            System.arraycopy(operands, right, operands, left, size - right);
+            size--;
+            return;
+        }
+
+        emit(op, 0);
+    }
+
+    private boolean isConstant(int from, int to) {
+        return to - from == 1 && code[from] == CompiledExpression.PUSH;
+    }
+
+    private static boolean canFold(byte op, double a, double b) {
+        if (op == CompiledExpression.IDIV) {
+            return b != 0 && CompiledExpression.isInt(a) && CompiledExpression.isInt(b);
+        }
+        return op != CompiledExpression.DIV || b != 0;
+    }
+
+    private static double fold(byte op, double a, double b) {
+        switch (op) {
+            case CompiledExpression.ADD:
                 return a + b;
-            case "-":
+            case CompiledExpression.SUB:
                 return a - b;
-            case "*":
+            case CompiledExpression.MUL:
                 return a * b;
-            case "/":
-                if (b == 0) {
-                    throw new ArithmeticException("Деление на ноль.");
-                }
-                return a / b;
-            case "^":
+            case CompiledExpression.DIV:
+                return CompiledExpression.divide(a, b);
+            case CompiledExpression.POW:
                 return Math.pow(a, b);
+            case CompiledExpression.IDIV:
+                return CompiledExpression.integerDivide(a, b);
             default:
-                throw new IllegalArgumentException("Неизвестный оператор: " + operator);
+                throw new IllegalStateException("Неизвестная команда: " + op);
         }
     }
 
-    // Деление нацело
-    public int integerDivide(int a, int b) {
+    private void emit(byte op, double operand) {
+        code[size] = op;
+        operands[size++] = operand;
+    }
+
+    private int maxStack() {
+        int current = 0;
+        int max = 0;
+        for (int pc = 0; pc < size; pc++) {
+            byte op = code[pc];
+            current += op == CompiledExpression.PUSH || op == CompiledExpression.LOAD || op == CompiledExpression.DUP ? 1 : -1;
+            max = Math.max(max, current);
+        }
+        return max;
+    }
+}
+
+
+// Скомпилированное выражение: неизменяемая программа в обратной польской записи.
+// Вычисление идет по массивам примитивов - без регулярных выражений, строк и упаковки чисел.
+// После JIT_THRESHOLD вычислений программа переводится в байт-код (KernelGenerator);
+// если генерация не удалась, продолжает работать интерпретатор
+final class CompiledExpression {
+
+    static final byte PUSH = 0;
+    static final byte ADD = 1;
+    static final byte SUB = 2;
+    static final byte MUL = 3;
+    static final byte DIV = 4;
+    static final byte POW = 5;
+    static final byte IDIV = 6;
+    static final byte LOAD = 7;   // значение переменной, операнд - ее индекс
+    static final byte DUP = 8;    // копия вершины стека
+
+    // Стек вычислений переиспользуется в пределах потока
+    private static final ThreadLocal<double[]> STACK = ThreadLocal.withInitial(() -> new double[16]);
+    private static final double[] NO_VARIABLES = new double[0];
+
+    // Число строк, обрабатываемых пакетным вычислением за один проход программы
+    private static final int BLOCK_SIZE = 256;
+
+    // Число вычислений интерпретатором до генерации байт-кода
+    static final int JIT_THRESHOLD = 10_000;
+
+    private final String expression;
+    private final String[] variables;
+    private final byte[] code;
+    private final double[] operands;
+    private final int maxStack;
+
+    // Счетчик вызовов - эвристика, гонки при увеличении допустимы
+    private int evaluations;
+    private volatile boolean tiered;
+    private volatile ExpressionKernel kernel;
+
+    // Программа для режимов long и BigDecimal строится при первом обращении
+    private volatile ExactProgram exact;
+
+    CompiledExpression(String expression, String[] variables, byte[] code, double[] operands, int maxStack) {
+        this.expression = expression;
+        this.variables = variables;
+        this.code = code;
+        this.operands = operands;
+        this.maxStack = maxStack;
+    }
+
+    public double evaluate() {
+        return evaluate(NO_VARIABLES);
+    }
+
+    // Значения переменных передаются в порядке, заданном при компиляции
+    public double evaluate(double... values) {
+        ExpressionKernel compiled = kernel;
+        if (compiled != null) {
+            checkArity(values.length);
+            return compiled.apply(values);
+        }
+
+        double[] stack = STACK.get();
+        if (stack.length < maxStack) {
+            stack = new double[maxStack];
+            STACK.set(stack);
+        }
+        return evaluate(values, stack);
+    }
+
+    // Вычисление на стеке вызывающего: длина stack не меньше getMaxStack()
+    public double evaluate(double[] values, double[] stack) {
+        checkArity(values.length);
+        ExpressionKernel compiled = kernel;
+        if (compiled == null && !tiered && ++evaluations >= JIT_THRESHOLD) {
+            compiled = compileKernel();
+        }
+        return compiled != null ? compiled.apply(values) : interpret(values, stack);
+    }
+
+    // Целочисленный режим: переполнение, деление с остатком и дробные литералы - ArithmeticException
+    public long evaluateLong(long... values) {
+        checkArity(values.length);
+        return exactProgram().evaluateLong(values);
+    }
+
+    // Режим BigDecimal: каждая операция округляется по context, литералы берутся без потерь
+    public BigDecimal evaluateDecimal(MathContext context, BigDecimal... values) {
+        checkArity(values.length);
+        return exactProgram().evaluateDecimal(context, values);
+    }
+
+    private ExactProgram exactProgram() {
+        ExactProgram program = exact;
+        if (program == null) {
+            program = new ExpressionCompiler().compileExact(expression, variables);
+            exact = program; // Гонка безопасна: программы от разных потоков одинаковы
+        }
+        return program;
+    }
+
+    private void checkArity(int count) {
+        if (count != variables.length) {
+            throw new IllegalArgumentException("Ожидается значений переменных: " + variables.length);
+        }
+    }
+
+    private synchronized ExpressionKernel compileKernel() {
+        if (!tiered) {
+            try {
+                kernel = KernelGenerator.generate(code, operands, maxStack);
+            } catch (Exception | LinkageError e) {
+                // Байт-код не создан - выражение и дальше вычисляет интерпретатор
+            }
+            tiered = true;
+        }
+        return kernel;
+    }
+
+    private double interpret(double[] values, double[] stack) {
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                case PUSH:
+                    stack[sp++] = operands[pc];
+                    break;
+                case LOAD:
+                    stack[sp++] = values[(int) operands[pc]];
+                    break;
+                case DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] + stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] - stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] * stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] = divide(stack[sp - 1], stack[sp]);
+                    break;
+                case POW:
+                    sp--;
+                    stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+                    break;
+                case IDIV:
+                    sp--;
+                    stack[sp - 1] = integerDivide(stack[sp - 1], stack[sp]);
+                    break;
+                default:
+                    throw new IllegalStateException("Неизвестная команда: " + code[pc]);
+            }
+        }
+        return stack[0];
+    }
+
+    // Пакетное вычисление: columns[i] - значения i-й переменной по строкам, результат строки row - в out[row].
+    // Программа выполняется блоками строк, каждая команда - плотный цикл по примитивным массивам.
+    // Как и calculate, строка с ошибкой (деление на ноль) получает Double.NaN
+    public void evaluate(double[][] columns, double[] out) {
+        if (columns.length != variables.length) {
+            throw new IllegalArgumentException("Ожидается столбцов: " + variables.length);
+        }
+        for (double[] column : columns) {
+            if (column.length < out.length) {
+                throw new IllegalArgumentException("Столбец короче массива результатов.");
+            }
+        }
+
+        double[][] stack = new double[maxStack][BLOCK_SIZE];
+        boolean[] failed = new boolean[BLOCK_SIZE];
+        for (int from = 0; from < out.length; from += BLOCK_SIZE) {
+            int count = Math.min(BLOCK_SIZE, out.length - from);
+            evaluateBlock(columns, from, count, stack, failed);
+
+            double[] result = stack[0];
+            for (int i = 0; i < count; i++) {
+                out[from + i] = failed[i] ? Double.NaN : result[i];
+                failed[i] = false;
+            }
+        }
+    }
+
+    private void evaluateBlock(double[][] columns, int from, int count, double[][] stack, boolean[] failed) {
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            byte op = code[pc];
+            if (op == PUSH) {
+                Arrays.fill(stack[sp++], 0, count, operands[pc]);
+                continue;
+            }
+            if (op == LOAD) {
+                System.arraycopy(columns[(int) operands[pc]], from, stack[sp++], 0, count);
+                continue;
+            }
+            if (op == DUP) {
+                System.arraycopy(stack[sp - 1], 0, stack[sp++], 0, count);
+                continue;
+            }
+
+            double[] b = stack[--sp];
+            double[] a = stack[sp - 1];
+            switch (op) {
+                case ADD:
+                    for (int i = 0; i < count; i++) {
+                        a[i] += b[i];
+                    }
+                    break;
+                case SUB:
+                    for (int i = 0; i < count; i++) {
+                        a[i] -= b[i];
+                    }
+                    break;
+                case MUL:
+                    for (int i = 0; i < count; i++) {
+                        a[i] *= b[i];
+                    }
+                    break;
+                case DIV:
+                    for (int i = 0; i < count; i++) {
+                        failed[i] |= b[i] == 0;
+                        a[i] /= b[i];
+                    }
+                    break;
+                case POW:
+                    for (int i = 0; i < count; i++) {
+                        a[i] = Math.pow(a[i], b[i]);
+                    }
+                    break;
+                case IDIV:
+                    for (int i = 0; i < count; i++) {
+                        if (b[i] == 0 || !isInt(a[i]) || !isInt(b[i])) {
+                            failed[i] = true;
+                        } else {
+                            a[i] = (int) a[i] / (int) b[i];
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Неизвестная команда: " + op);
+            }
+        }
+    }
+
+    static double divide(double a, double b) {
         if (b == 0) {
             throw new ArithmeticException("Деление на ноль.");
         }
         return a / b;
     }
 
+    // Операнды деления нацело - целые литералы; как и прежде (Integer.parseInt), они должны помещаться в int
+    static double integerDivide(double a, double b) {
+        if (!isInt(a) || !isInt(b)) {
+            throw new ArithmeticException("Число вне диапазона int.");
+        }
+        if (b == 0) {
+            throw new ArithmeticException("Деление на ноль.");
+        }
+        return (int) a / (int) b;
+    }
+
+    static boolean isInt(double value) {
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    // Число команд программы
+    public int size() {
+        return code.length;
+    }
+
+    public String[] getVariables() {
+        return variables.clone();
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledExpression{" + expression + '}';
+    }
+}
+
+
+// Ограниченный потокобезопасный кэш скомпилированных выражений с приближенным LRU.
+// Ключ - текст без пробельных символов (как после replaceAll("\\s+", "")).
+// Попадания обслуживаются без блокировки; блокировка берется только для вставки и вытеснения.
+// Вытеснение по числу записей и по суммарному весу - числу команд программ
+class CompiledExpressionCache {
+
+    // Отметка времени доступа обновляется не чаще раза в миллисекунду,
+    // чтобы горячая запись не гоняла строку кэша между ядрами
+    private static final long STAMP_RESOLUTION_NANOS = 1_000_000L;
+
+    private static final class Entry {
+        final CompiledExpression value;
+        volatile long stamp;
+
+        Entry(CompiledExpression value, long stamp) {
+            this.value = value;
+            this.stamp = stamp;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxWeight;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Lock lock = new ReentrantLock(); // Только вставка, вытеснение и очистка
+    private volatile long weight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CompiledExpressionCache(int maxEntries, long maxWeight) {
+        if (maxEntries <= 0 || maxWeight <= 0) {
+            throw new IllegalArgumentException("Размер кэша должен быть положительным.");
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    // Возвращает программу из кэша или компилирует ее; ошибки компиляции не кэшируются
+    public CompiledExpression get(String expression, Function<String, CompiledExpression> compiler) {
+        String key = normalize(expression);
+        Entry cached = entries.get(key);
+        if (cached != null) {
+            hits.increment();
+            touch(cached);
+            return cached.value;
+        }
+
+        misses.increment();
+        CompiledExpression compiled = compiler.apply(key); // Разбор вне блокировки
+
+        lock.lock();
+        try {
+            Entry previous = entries.putIfAbsent(key, new Entry(compiled, System.nanoTime()));
+            if (previous != null) {
+                return previous.value; // Другой поток успел скомпилировать то же выражение
+            }
+            weight += compiled.size();
+            if (entries.size() > maxEntries || weight > maxWeight) {
+                evict();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return compiled;
+    }
+
+    private static void touch(Entry entry) {
+        long now = System.nanoTime();
+        if (now - entry.stamp > STAMP_RESOLUTION_NANOS) {
+            entry.stamp = now;
+        }
+    }
+
+    // Вызывается под блокировкой. Вытесняет давно не использованные записи до 7/8 лимитов,
+    // чтобы полный просмотр отметок выполнялся не на каждой вставке
+    private void evict() {
+        int targetEntries = maxEntries - maxEntries / 8;
+        long targetWeight = maxWeight - maxWeight / 8;
+
+        List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+        long[] stamps = new long[snapshot.size()];
+        Integer[] order = new Integer[snapshot.size()];
+        for (int i = 0; i < stamps.length; i++) {
+            stamps[i] = snapshot.get(i).getValue().stamp; // Отметка фиксируется один раз на сортировку
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(stamps[a], stamps[b]));
+
+        for (int i = 0; i < order.length && (entries.size() > targetEntries || weight > targetWeight); i++) {
+            Map.Entry<String, Entry> eldest = snapshot.get(order[i]);
+            if (entries.remove(eldest.getKey(), eldest.getValue())) {
+                weight -= eldest.getValue().value.size();
+                evictions.increment();
+            }
+        }
+    }
+
+    static String normalize(String expression) {
+        int i = 0;
+        while (i < expression.length() && !isWhitespace(expression.charAt(i))) {
+            i++;
+        }
+        if (i == expression.length()) {
+            return expression; // Пробелов нет - строка не копируется
+        }
+
+        StringBuilder sb = new StringBuilder(expression.length()).append(expression, 0, i);
+        for (; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (!isWhitespace(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Те же символы, что \s в регулярных выражениях
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            weight = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getWeight() {
+        return weight;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledExpressionCache{" + "size=" + size() + ", weight=" + getWeight() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", evictions=" + getEvictions() + '}';
+    }
+}
+
+
+// Пакетное вычисление независимых выражений на ForkJoinPool.
+// Результаты идут в порядке входа и совпадают с последовательными вызовами calculate (NaN при ошибке)
+class BatchCalculator {
+
+    // Выражений в одной неделимой задаче
+    private static final int THRESHOLD = 512;
+
+    private final CalculatorModel model;
+    private final ForkJoinPool pool;
+
+    public BatchCalculator(CalculatorModel model) {
+        this(model, ForkJoinPool.commonPool());
+    }
+
+    public BatchCalculator(CalculatorModel model, ForkJoinPool pool) {
+        this.model = model;
+        this.pool = pool;
+    }
+
+    public BatchResult calculateAll(List<String> expressions) {
+        String[] input = expressions.toArray(new String[0]);
+        double[] results = new double[input.length];
+
+        long start = System.nanoTime();
+        pool.invoke(new CalculateTask(input, results, 0, input.length));
+        return new BatchResult(results, System.nanoTime() - start);
+    }
+
+    public BatchResult calculateAll(Stream<String> expressions) {
+        return calculateAll(expressions.toList());
+    }
+
+    private class CalculateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String[] input;
+        private final double[] results;
+        private final int from;
+        private final int to;
+
+        CalculateTask(String[] input, double[] results, int from, int to) {
+            this.input = input;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    results[i] = model.calculate(input[i]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new CalculateTask(input, results, from, middle), new CalculateTask(input, results, middle, to));
+        }
+    }
+}
+
+// Результат пакета: значения по порядку выражений и пропускная способность
+class BatchResult {
+
+    private final double[] results;
+    private final long elapsedNanos;
+
+    BatchResult(double[] results, long elapsedNanos) {
+        this.results = results;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int size() {
+        return results.length;
+    }
+
+    public double get(int index) {
+        return results[index];
+    }
+
+    public double[] toArray() {
+        return results.clone();
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    // Выражений в секунду
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : results.length * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{" + "size=" + results.length + ", elapsedMs=" + elapsedNanos / 1_000_000
+                + ", throughput=" + Math.round(getThroughput()) + " выр./с" + '}';
+    }
+}
+
+
+// Замеры движка: задержка (нс/оп) и выделение памяти (байт/оп) для разбора, вычисления
+// и полного calculate на коротком, длинном (до 500 символов) и глубоко вложенном выражении.
+// Запуск: java CalculatorBenchmark [число итераций]
+class CalculatorBenchmark {
+
+    private static volatile double sink; // не дает JIT выбросить результат
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        CalculatorModel model = new CalculatorModel();
+
+        String[][] inputs = {
+                {"short", "2+3*4-10/4^2"},
+                {"long", longExpression()},
+                {"nested", nestedExpression()}
+        };
+        for (String[] input : inputs) {
+            String expression = input[1];
+            CompiledExpression compiled = model.compile(expression);
+            measure(input[0] + " parse", iterations, () -> model.compile(expression).getMaxStack());
+            measure(input[0] + " evaluate", iterations, compiled::evaluate);
+            measure(input[0] + " end-to-end", iterations, () -> model.calculate(expression));
+        }
+        System.out.println(model.getCache());
+    }
+
+    static void measure(String name, int iterations, DoubleSupplier operation) {
+        for (int i = 0; i < iterations; i++) { // прогрев JIT
+            sink = operation.getAsDouble();
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        double result = 0;
+        for (int i = 0; i < iterations; i++) {
+            result += operation.getAsDouble();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+        sink = result;
+
+        System.out.printf("%-20s %10.1f нс/оп %10.1f байт/оп%n", name, (double) elapsed / iterations, (double) bytes / iterations);
+    }
+
+    // Цепочка операций всех приоритетов длиной до предела в 500 символов
+    static String longExpression() {
+        String[] operators = {"+", "*", "-", "/", "^"};
+        StringBuilder sb = new StringBuilder("1");
+        for (int i = 0; sb.length() < 490; i++) {
+            sb.append(operators[i % operators.length]).append(i % 9 + 1).append('.').append(i % 7);
+        }
+        return sb.toString();
+    }
+
+    static String nestedExpression() {
+        StringBuilder sb = new StringBuilder("1+");
+        for (int i = 0; i < 60; i++) {
+            sb.append('(');
+        }
+        sb.append('2');
+        for (int i = 0; i < 60; i++) {
+            sb.append(i % 2 == 0 ? "*3)" : "-1)");
+        }
+        return sb.append("+1").toString();
+    }
 }
 
 
@@ -1,8 +1,16 @@
 
 import .util.ArrayDeque;
-import java.util.Deque;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+import java.util.stream.Stream;
 
 public class Main {
 
@@ -24,39 +32,106 @@ class CalculatorModel {
     }
 
     private double evaluateExpression(String expression) {
-        expression = expression.replaceAll("\\s+", ""); // Убираем пробелы
-        if (!isValidExpression(expression)) {
+        return SCANNERS.get().evaluate(expression);
+    }
+
+    // Точный факториал без переполнения; небольшие значения кэшируются между вызовами
+    public BigInteger exactFactorial(int n) {
+        return Factorials.exact(n);
+    }
+
+    // Буферы сканера переиспользуются в пределах потока
+    private static final ThreadLocal<ExpressionScanner> SCANNERS = ThreadLocal.withInitial(ExpressionScanner::new);
+}
+
+
+// Сканер и вычислитель выражений без регулярных выражений и объектов:
+// символы разбираются вручную, числа и операторы лежат в стеках double[] и byte[],
+// которые растут до длины самого длинного выражения и затем переиспользуются.
+// Экземпляр не потокобезопасен
+final class ExpressionScanner {
+
+    private static final double LN2 = Math.log(2);
+
+    // Точные степени десяти для быстрого разбора чисел
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private char[] text = new char[64];   // выражение без пробелов
+    private int length;
+    private double[] numbers = new double[64];
+    private byte[] operators = new byte[64];
+
+    double evaluate(String expression) {
+        stripWhitespace(expression);
+        if (!isValidExpression()) {
             throw new IllegalArgumentException("Некорректное выражение.");
         }
 
-        if (!isBalanced(expression)) {
+        if (!isBalanced()) {
             throw new IllegalArgumentException("Несбалансированные скобки.");
         }
 
-        return shuntingYard(expression);
+        return shuntingYard();
     }
 
-    private boolean isValidExpression(String expression) {
-        // Проверка на допустимые символы
-        if (!Pattern.matches("^[0-9+\\-*/^().!log]+$", expression)) {
-            return false;
+    private void stripWhitespace(String expression) {
+        int capacity = expression.length();
+        if (text.length < capacity) {
+            text = new char[capacity];
+            numbers = new double[capacity];
+            operators = new byte[capacity];
+        }
+        length = 0;
+        for (int i = 0; i < capacity; i++) {
+            char c = expression.charAt(i);
+            if (!isWhitespace(c)) {
+                text[length++] = c;
+            }
         }
+    }
+
+    // Те же символы, что \s в регулярных выражениях
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
 
-        // Проверка количества операндов (ограничение по заданию - до 15 слагаемых) - грубая оценка.  Сложно точно посчитать без парсинга.
-        String[] parts = expression.split("[+\\-]");
-        if (parts.length > 15) { //  Простая оценка количества слагаемых
+    private boolean isValidExpression() {
+        if (length == 0) {
             return false;
         }
 
-        return true;
+        // Проверка на допустимые символы
+        for (int i = 0; i < length; i++) {
+            char c = text[i];
+            if (!isDigit(c) && "+-*/^().!log".indexOf(c) < 0) {
+                return false;
+            }
+        }
+
+        // Проверка количества операндов (ограничение по заданию - до 15 слагаемых) - грубая оценка.
+        // Считается как split("[+\\-]"): пустые части в конце не учитываются
+        int parts = 0;
+        int separators = 0;
+        for (int i = 0; i < length; i++) {
+            if (text[i] == '+' || text[i] == '-') {
+                separators++;
+            } else {
+                parts = separators + 1;
+            }
+        }
+        return parts <= 15;
     }
 
-    private boolean isBalanced(String expression) {
+    private boolean isBalanced() {
         int balance = 0;
-        for (char c : expression.toCharArray()) {
-            if (c == '(') {
+        for (int i = 0; i < length; i++) {
+            if (text[i] == '(') {
                 balance++;
-            } else if (c == ')') {
+            } else if (text[i] == ')') {
                 balance--;
             }
             if (balance < 0) {
@@ -66,109 +141,443 @@ class CalculatorModel {
         return balance == 0; // Все скобки должны быть закрыты
     }
 
+    // Скобки и "**" распознаются как токены, но на вычисление не влияют - как и в прежней версии на Matcher
+    private double shuntingYard() {
+        int numberCount = 0;
+        int operatorCount = 0;
+
+        int i = 0;
+        while (i < length) {
+            char c = text[i];
 
+            if (isDigit(c)) {
+                int start = i;
+                i = skipDigits(i);
+                if (i + 1 < length && text[i] == '.' && isDigit(text[i + 1])) {
+                    i = skipDigits(i + 1);
+                }
+                numbers[numberCount++] = parseNumber(start, i);
+                continue;
+            }
 
-    private double shuntingYard(String expression) {
-        Deque<Double> numbers = new ArrayDeque<>();
-        Deque<String> operators = new ArrayDeque<>();
-
-        Pattern tokenPattern = Pattern.compile("(!|log|exp|\\*\\*|\\^|[+\\-*/()])|(\\d+(\\.\\d+)?)");  //Улучшенное регулярное выражение
-        Matcher matcher = tokenPattern.matcher(expression);
-
-        while (matcher.find()) {
-            String operator = matcher.group(1);
-            String number = matcher.group(2);
-
-            if (number != null) {
-                numbers.push(Double.parseDouble(number));
-            } else if (operator != null) {
-                if (operator.equals("!")) {
-                    //  Обработка факториала
-                    if (numbers.isEmpty()) {
-                        throw new IllegalArgumentException("Некорректное выражение: Факториал от пустого значения.");
-                    }
-                    double operand = numbers.pop();
-                    numbers.push(factorial((int) operand)); //  Факториал только для целых чисел
-                } else if (operator.equals("log")) {
-                    if (numbers.size() < 1) {
-                         throw new IllegalArgumentException("Некорректное выражение: Недостаточно аргументов для log()");
-                    }
-                    double operand = numbers.pop();
-                    numbers.push(Math.log(operand) / Math.log(2)); // log2
-                } else if (operator.equals("exp")) {
-                    if (numbers.size() < 1) {
-                         throw new IllegalArgumentException("Некорректное выражение: Недостаточно аргументов для exp()");
-                    }
-                    double operand = numbers.pop();
-                    numbers.push(Math.exp(operand));
-                } else if (isOperator(operator)) {
-                    if(operator.equals("**")){
-                       operator = "^";  // Замена ** на ^
-                    }
-                    while (!operators.isEmpty() && hasPrecedence(operator, operators.peek())) {
-                        numbers.push(applyOperator(operators.pop(), numbers.pop(), numbers.pop()));
-                    }
-                    operators.push(operator);
+            if (c == '!') {
+                //  Обработка факториала
+                if (numberCount == 0) {
+                    throw new IllegalArgumentException("Некорректное выражение: Факториал от пустого значения.");
                 }
+                numbers[numberCount - 1] = Factorials.factorial(numbers[numberCount - 1]);
+                i++;
+            } else if (matches(i, "log")) {
+                if (numberCount < 1) {
+                    throw new IllegalArgumentException("Некорректное выражение: Недостаточно аргументов для log()");
+                }
+                numbers[numberCount - 1] = Math.log(numbers[numberCount - 1]) / LN2; // log2
+                i += 3;
+            } else if (matches(i, "exp")) {
+                if (numberCount < 1) {
+                    throw new IllegalArgumentException("Некорректное выражение: Недостаточно аргументов для exp()");
+                }
+                numbers[numberCount - 1] = Math.exp(numbers[numberCount - 1]);
+                i += 3;
+            } else if (matches(i, "**")) {
+                i += 2;
+            } else if (isOperator(c)) {
+                while (operatorCount > 0 && precedence(operators[operatorCount - 1]) >= precedence(c)) {
+                    numberCount = applyOperator(operators[--operatorCount], numberCount);
+                }
+                operators[operatorCount++] = (byte) c;
+                i++;
+            } else {
+                i++;
             }
         }
 
-        while (!operators.isEmpty()) {
-            numbers.push(applyOperator(operators.pop(), numbers.pop(), numbers.pop()));
+        while (operatorCount > 0) {
+            numberCount = applyOperator(operators[--operatorCount], numberCount);
         }
 
-        if (numbers.size() != 1) {
+        if (numberCount != 1) {
             throw new IllegalArgumentException("Некорректное выражение.");
         }
 
-        return numbers.pop();
+        return numbers[0];
+    }
+
+    private boolean matches(int i, String token) {
+        if (i + token.length() > length) {
+            return false;
+        }
+        for (int k = 0; k < token.length(); k++) {
+            if (text[i + k] != token.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
     }
 
+    private int skipDigits(int i) {
+        while (i < length && isDigit(text[i])) {
+            i++;
+        }
+        return i;
+    }
 
-    private boolean isOperator(String token) {
-        return token.equals("+") || token.equals("-") || token.equals("*") || token.equals("/") || token.equals("^");
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 
-    private boolean hasPrecedence(String op1, String op2) {
-        if (op2.equals("(") || op2.equals(")")) {
-            return false;
+    // Число из цифр [start, end) с необязательной дробной частью. Если мантисса и степень десяти
+    // представимы точно, одно деление дает корректно округленный результат, как Double.parseDouble
+    private double parseNumber(int start, int end) {
+        long mantissa = 0;
+        int fractionDigits = -1;
+        for (int i = start; i < end; i++) {
+            char c = text[i];
+            if (c == '.') {
+                fractionDigits = 0;
+                continue;
+            }
+            mantissa = mantissa * 10 + (c - '0');
+            if (mantissa > MAX_EXACT_MANTISSA) {
+                return Double.parseDouble(new String(text, start, end - start));
+            }
+            if (fractionDigits >= 0) {
+                fractionDigits++;
+            }
         }
-        if ((op1.equals("^")) && (op2.equals("*") || op2.equals("/") || op2.equals("+") || op2.equals("-"))) return false;
-        if ((op1.equals("*") || op1.equals("/")) && (op2.equals("+") || op2.equals("-"))) return false;
-        return true;
+        if (fractionDigits <= 0) {
+            return mantissa;
+        }
+        if (fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(new String(text, start, end - start));
+        }
+        return mantissa / POWERS_OF_TEN[fractionDigits];
     }
 
+    private static boolean isOperator(char c) {
+        return c == '+' || c == '-' || c == '*' || c == '/' || c == '^';
+    }
 
-    private double applyOperator(String operator, double b, double a) {
+    private static int precedence(int operator) {
         switch (operator) {
-            case "+":
-                return a + b;
-            case "-":
-                return a - b;
-            case "*":
-                return a * b;
-            case "/":
+            case '+':
+            case '-':
+                return 1;
+            case '*':
+            case '/':
+                return 2;
+            case '^':
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    // Применяет оператор к двум верхним числам и возвращает новую глубину стека
+    private int applyOperator(byte operator, int numberCount) {
+        if (numberCount < 2) {
+            throw new IllegalArgumentException("Некорректное выражение.");
+        }
+        double b = numbers[numberCount - 1];
+        double a = numbers[numberCount - 2];
+        double result;
+        switch (operator) {
+            case '+':
+                result = a + b;
+                break;
+            case '-':
+                result = a - b;
+                break;
+            case '*':
+                result = a * b;
+                break;
+            case '/':
                 if (b == 0) {
                     throw new ArithmeticException("Деление на ноль.");
                 }
-                return a / b;
-            case "^":
-                return Math.pow(a, b);
+                result = a / b;
+                break;
+            case '^':
+                result = Math.pow(a, b);
+                break;
             default:
-                throw new IllegalArgumentException("Неизвестный оператор: " + operator);
+                throw new IllegalArgumentException("Неизвестный оператор: " + (char) operator);
         }
+        numbers[numberCount - 2] = result;
+        return numberCount - 1;
     }
+}
 
-    // Факториал
-    private double factorial(int n) {
+
+// Факториал: для целых 0..170 - готовая таблица (171! уже не помещается в double),
+// для нецелых - гамма-функция Ланцоша, x! = Г(x + 1).
+// Точный режим на BigInteger хранит значения до EXACT_CACHE_LIMIT! в общем кэше, большие считает деревом произведений
+final class Factorials {
+
+    // Наибольшее n, для которого n! конечно в double
+    static final int MAX_DOUBLE_ARGUMENT = 170;
+
+    private static final double[] TABLE = new double[MAX_DOUBLE_ARGUMENT + 1];
+
+    static {
+        TABLE[0] = 1;
+        for (int i = 1; i < TABLE.length; i++) {
+            TABLE[i] = TABLE[i - 1] * i; // Тот же порядок умножений, что и в прежнем цикле
+        }
+    }
+
+    // Коэффициенты Ланцоша для g = 7, n = 9
+    private static final double LANCZOS_G = 7;
+    private static final double[] LANCZOS = {
+            0.99999999999980993, 676.5203681218851, -1259.1392167224028, 771.32342877765313,
+            -176.61502916214059, 12.507343278686905, -0.13857109526572012, 9.9843695780195716e-6,
+            1.5056327351493116e-7
+    };
+    private static final double SQRT_TWO_PI = Math.sqrt(2 * Math.PI);
+
+    // Общий кэш точных значений: EXACT.get(n) = n! для n <= EXACT_CACHE_LIMIT (около 0.5 МБ).
+    // Больше не кэшируется: 100000! с промежуточными значениями заняли бы гигабайты
+    private static final int EXACT_CACHE_LIMIT = 1000;
+    private static final List<BigInteger> EXACT = new ArrayList<>(List.of(BigInteger.ONE));
+    private static final Lock EXACT_LOCK = new ReentrantLock();
+
+    private Factorials() {
+    }
+
+    static double factorial(double x) {
+        if (x == Math.rint(x)) {
+            if (x < 0) {
+                throw new IllegalArgumentException("Факториал не определен для отрицательных целых чисел.");
+            }
+            return x <= MAX_DOUBLE_ARGUMENT ? TABLE[(int) x] : Double.POSITIVE_INFINITY;
+        }
+        return gamma(x + 1);
+    }
+
+    static double gamma(double z) {
+        if (z < 0.5) {
+            return Math.PI / (Math.sin(Math.PI * z) * gamma(1 - z)); // Формула отражения
+        }
+        z -= 1;
+        double sum = LANCZOS[0];
+        for (int i = 1; i < LANCZOS.length; i++) {
+            sum += LANCZOS[i] / (z + i);
+        }
+        double t = z + LANCZOS_G + 0.5;
+        double half = Math.pow(t, (z + 0.5) / 2); // t^(z+0.5) по половинам, чтобы не переполниться раньше времени
+        return SQRT_TWO_PI * half * (half * Math.exp(-t)) * sum;
+    }
+
+    static BigInteger exact(int n) {
         if (n < 0) {
             throw new IllegalArgumentException("Факториал определен только для неотрицательных целых чисел.");
         }
-        double result = 1;
-        for (int i = 1; i <= n; i++) {
-            result *= i;
+        BigInteger cached = cachedExact(Math.min(n, EXACT_CACHE_LIMIT));
+        if (n <= EXACT_CACHE_LIMIT) {
+            return cached;
+        }
+        return cached.multiply(product(EXACT_CACHE_LIMIT + 1, n)); // Вне блокировки: другие вычисления не ждут
+    }
+
+    private static BigInteger cachedExact(int n) {
+        EXACT_LOCK.lock();
+        try {
+            for (int i = EXACT.size(); i <= n; i++) {
+                EXACT.add(EXACT.get(i - 1).multiply(BigInteger.valueOf(i)));
+            }
+            return EXACT.get(n);
+        } finally {
+            EXACT_LOCK.unlock();
+        }
+    }
+
+    // from * (from + 1) * ... * to деревом: множители примерно одной длины, поэтому
+    // BigInteger использует быстрое умножение (Карацуба, Тоом-Кук) вместо квадратичного
+    private static BigInteger product(int from, int to) {
+        if (to - from < 16) {
+            BigInteger result = BigInteger.valueOf(from);
+            for (int i = from + 1; i <= to; i++) {
+                result = result.multiply(BigInteger.valueOf(i));
+            }
+            return result;
+        }
+        int middle = (int) (((long) from + to) >>> 1);
+        return product(from, middle).multiply(product(middle + 1, to));
+    }
+
+    static BigDecimal exact(BigDecimal n) {
+        try {
+            return new BigDecimal(exact(n.intValueExact()));
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Точный факториал определен только для целых чисел: " + n);
+        }
+    }
+}
+
+// Пакетное вычисление независимых выражений на ForkJoinPool. Каждый рабочий поток переиспользует
+// свой ExpressionScanner (CalculatorModel.SCANNERS). Результаты идут в порядке входа и совпадают
+// с последовательными вызовами calculate (NaN при ошибке)
+class BatchCalculator {
+
+    // Выражений в одной неделимой задаче
+    private static final int THRESHOLD = 512;
+
+    private final CalculatorModel model;
+    private final ForkJoinPool pool;
+
+    public BatchCalculator(CalculatorModel model) {
+        this(model, ForkJoinPool.commonPool());
+    }
+
+    public BatchCalculator(CalculatorModel model, ForkJoinPool pool) {
+        this.model = model;
+        this.pool = pool;
+    }
+
+    public BatchResult calculateAll(List<String> expressions) {
+        String[] input = expressions.toArray(new String[0]);
+        double[] results = new double[input.length];
+
+        long start = System.nanoTime();
+        pool.invoke(new CalculateTask(input, results, 0, input.length));
+        return new BatchResult(results, System.nanoTime() - start);
+    }
+
+    public BatchResult calculateAll(Stream<String> expressions) {
+        return calculateAll(expressions.toList());
+    }
+
+    private class CalculateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String[] input;
+        private final double[] results;
+        private final int from;
+        private final int to;
+
+        CalculateTask(String[] input, double[] results, int from, int to) {
+            this.input = input;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    results[i] = model.calculate(input[i]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new CalculateTask(input, results, from, middle), new CalculateTask(input, results, middle, to));
+        }
+    }
+}
+
+// Результат пакета: значения по порядку выражений и пропускная способность
+class BatchResult {
+
+    private final double[] results;
+    private final long elapsedNanos;
+
+    BatchResult(double[] results, long elapsedNanos) {
+        this.results = results;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int size() {
+        return results.length;
+    }
+
+    public double get(int index) {
+        return results[index];
+    }
+
+    public double[] toArray() {
+        return results.clone();
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    // Выражений в секунду
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : results.length * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{" + "size=" + results.length + ", elapsedMs=" + elapsedNanos / 1_000_000
+                + ", throughput=" + Math.round(getThroughput()) + " выр./с" + '}';
+    }
+}
+
+// Замеры движка: задержка (нс/оп) и выделение памяти (байт/оп) для короткого, длинного
+// (до 500 символов) и глубоко вложенного выражения. Сканер разбирает и вычисляет за один проход,
+// поэтому замеряется полный calculate. Запуск: java CalculatorBenchmark [число итераций]
+class CalculatorBenchmark {
+
+    private static volatile double sink; // не дает JIT выбросить результат
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        CalculatorModel model = new CalculatorModel();
+
+        String[][] inputs = {
+                {"short", "2+3*4!-8log/2"},
+                {"long", longExpression()},
+                {"nested", nestedExpression()}
+        };
+        for (String[] input : inputs) {
+            String expression = input[1];
+            measure(input[0] + " end-to-end", iterations, () -> model.calculate(expression));
+        }
+    }
+
+    static void measure(String name, int iterations, DoubleSupplier operation) {
+        for (int i = 0; i < iterations; i++) { // прогрев JIT
+            sink = operation.getAsDouble();
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        double result = 0;
+        for (int i = 0; i < iterations; i++) {
+            result += operation.getAsDouble();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+        sink = result;
+
+        System.out.printf("%-20s %10.1f нс/оп %10.1f байт/оп%n", name, (double) elapsed / iterations, (double) bytes / iterations);
+    }
+
+    // Длинная цепочка умножений, делений, степеней, факториалов и log (не больше 15 слагаемых)
+    static String longExpression() {
+        String[] operands = {"1.5", "3!", "8log", "2", "0.75"};
+        String[] operators = {"*", "/", "*", "^"};
+        StringBuilder sb = new StringBuilder("1");
+        for (int i = 0; sb.length() < 490; i++) {
+            sb.append(i % 40 == 39 ? "+" : operators[i % operators.length]).append(operands[i % operands.length]);
+        }
+        return sb.toString();
+    }
+
+    static String nestedExpression() {
+        StringBuilder sb = new StringBuilder("1+");
+        for (int i = 0; i < 60; i++) {
+            sb.append('(');
+        }
+        sb.append('2');
+        for (int i = 0; i < 60; i++) {
+            sb.append(i % 2 == 0 ? "*3)" : "/2)");
         }
-        return result;
+        return sb.append("+1").toString();
     }
 }
 
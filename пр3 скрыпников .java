@@ -1,8 +1,56 @@
 
 import .io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
 public class Main {
 
@@ -15,19 +63,60 @@ public class Main {
 // Модель
 class VotingSystem {
 
-    private List<User> users = new ArrayList<>();
-    private List<Candidate> candidates = new ArrayList<>();
-    private List<Election> elections = new ArrayList<>();
+    private UserDirectory users = new UserDirectory();
+    private PasswordHasher hasher = new PasswordHasher(Integer.getInteger("voting.hash.iterations", PasswordHasher.DEFAULT_ITERATIONS));
+    // Списки читаются из многих сеансов сервера и меняются редко
+    private List<Candidate> candidates = new CopyOnWriteArrayList<>();
+    private List<Election> elections = new CopyOnWriteArrayList<>();
     private User loggedInUser = null;
     private Scanner scanner = new Scanner(System.in);
+    private EventLedger ledger; // null - данные не сохраняются
+
+    // Типы событий журнала
+    private static final byte USER_ADDED = 1;
+    private static final byte USER_REMOVED = 2;
+    private static final byte CANDIDATE_ADDED = 3;
+    private static final byte CANDIDATE_REMOVED = 4;
+    private static final byte ELECTION_CREATED = 5;
+    private static final byte VOTE_CAST = 6;
+    private static final byte PASSWORD_CHANGED = 7;
+    private static final byte IDS_RESERVED = 8; // устаревшее: граница блока id, при повторе пропускается
+    private static final byte USERS_ADDED = 9;
+
+    // DateTimeFormatter неизменяемый, поэтому один экземпляр годится для всех потоков
+    private static final DateTimeFormatter BIRTH_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("dd.MM.uuuu").withResolverStyle(ResolverStyle.STRICT);
+
+    private IdGenerator ids = new IdGenerator(0);
+    // Снимки делает отдельный поток, чтобы изменение, после которого пора делать снимок, не ждало его
+    private final ExecutorService snapshots = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ledger-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+    private long lastId; // наибольший выданный id по снимку и журналу
+
+    // Загрузка и сохранение данных без консольного меню - для сервера
+    void open() {
+        loadData();
+    }
+
+    void close() {
+        saveData();
+    }
 
     public void run() {
         loadData();
         while (true) {
-            if (loggedInUser == null) {
-                showLoginRegisterMenu();
-            } else {
-                showMainMenu();
+            try {
+                if (loggedInUser == null) {
+                    showLoginRegisterMenu();
+                } else {
+                    showMainMenu();
+                }
+            } catch (UncheckedIOException e) {
+                System.out.println("Ошибка сохранения данных: " + e.getCause().getMessage() + ". Изменение не выполнено.");
             }
         }
     }
@@ -113,7 +202,7 @@ class VotingSystem {
         System.out.println("2. Добавление кандидатов (логин:пароль)");
         System.out.println("3. Печать результатов (PDF - заглушка)");
         System.out.println("4. Выбор группировки результатов (заглушка)");
-        System.out.println("5. Сортировка результатов (заглушка)");
+        System.out.println("5. Результаты голосований (по убыванию голосов, явка по часам)");
         System.out.println("0. Выйти");
 
         System.out.print("Выберите действие: ");
@@ -133,7 +222,7 @@ class VotingSystem {
                 System.out.println("Функциональность группировки результатов не реализована.");
                 break;
             case "5":
-                System.out.println("Функциональность сортировки результатов не реализована.");
+                showResults();
                 break;
             case "0":
                 logout();
@@ -143,6 +232,27 @@ class VotingSystem {
         }
     }
 
+    private void showResults() {
+        if (elections.isEmpty()) {
+            System.out.println("Нет голосований.");
+            return;
+        }
+        SimpleDateFormat hour = new SimpleDateFormat("dd.MM.yyyy HH:00");
+        for (Election election : elections) {
+            ElectionResults results = election.getLiveResults();
+            System.out.println("\n--- " + election + ", всего голосов: " + results.getTotal() + " ---");
+            int place = 1;
+            for (Standing standing : results.top(10)) {
+                Candidate candidate = findCandidate(standing.getCandidateId());
+                String name = candidate != null ? candidate.getLogin() : "id " + standing.getCandidateId();
+                System.out.printf("%d. %s - %d (%.1f%%)%n", place++, name, standing.getVotes(), standing.getShare() * 100);
+            }
+            for (Map.Entry<Long, Long> bucket : results.getTurnout().entrySet()) {
+                System.out.println("Явка " + hour.format(new Date(bucket.getKey())) + ": " + bucket.getValue());
+            }
+        }
+    }
+
     private void showCandidateMenu() {
         System.out.println("1. Заполнение данных о себе (заглушка)");
         System.out.println("2. Результаты предыдущего голосования (заглушка)");
@@ -203,17 +313,86 @@ class VotingSystem {
         System.out.print("Введите пароль: ");
         String password = scanner.nextLine();
 
-        for (User user : users) {
-            if (user.getLogin().equals(login) && user.getPassword().equals(password)) {
-                loggedInUser = user;
-                System.out.println("Успешный вход.");
-                return;
-            }
+        User user = authenticate(login, password);
+        if (user != null) {
+            loggedInUser = user;
+            System.out.println("Успешный вход.");
+            return;
         }
 
         System.out.println("Неверный логин или пароль.");
     }
 
+    // null - неверный логин или пароль
+    User authenticate(String login, String password) {
+        User user = users.find(login);
+        if (user == null) {
+            hasher.verifyMissing(password); // Время ответа не выдает, что логина нет
+            return null;
+        }
+        if (!hasher.verify(password, user.getPasswordHash())) {
+            return null;
+        }
+        if (hasher.needsRehash(user.getPasswordHash())) {
+            changePassword(user, hasher.hash(password)); // Стоимость хеширования изменилась в настройках
+        }
+        return user;
+    }
+
+    // null - логин уже занят
+    User registerUser(String login, String password, String fio, Date birthDate) {
+        User newUser = new User(generateId(), login, hasher.hash(password), Role.USER, fio, birthDate, null, null);
+        return addUser(newUser) ? newUser : null;
+    }
+
+    // Дата рождения dd.MM.yyyy, полночь по местному времени; несуществующие даты (31.02) отклоняются
+    static Date parseBirthDate(String text) {
+        LocalDate date = LocalDate.parse(text.trim(), BIRTH_DATE_FORMAT);
+        if (date.isAfter(LocalDate.now())) {
+            throw new DateTimeParseException("Birth date is in the future", text, 0);
+        }
+        return Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    String hashPassword(String password) {
+        return hasher.hash(password);
+    }
+
+    boolean isLoginTaken(String login) {
+        return users.find(login) != null;
+    }
+
+    // null - пользователь не найден (например, удален администратором)
+    User findUser(String login) {
+        return users.find(login);
+    }
+
+    Election openElection(Date endDate) {
+        Election newElection = new Election(generateId(), endDate);
+        addElection(newElection);
+        return newElection;
+    }
+
+    // Кандидат и его учетная запись; null - логин уже занят
+    Candidate registerCandidate(String login, String password) {
+        String passwordHash = hasher.hash(password);
+        User newUser = new User(generateId(), login, passwordHash, Role.CANDIDATE, "Кандидат", null, null, null);
+        if (!addUser(newUser)) {
+            return null;
+        }
+        Candidate newCandidate = new Candidate(generateId(), login, passwordHash);
+        addCandidate(newCandidate);
+        return newCandidate;
+    }
+
+    List<Candidate> getCandidates() {
+        return Collections.unmodifiableList(candidates);
+    }
+
+    List<Election> getElections() {
+        return Collections.unmodifiableList(elections);
+    }
+
     private void register() {
         System.out.print("Введите ФИО: ");
         String fio = scanner.nextLine();
@@ -222,8 +401,8 @@ class VotingSystem {
 
         Date birthDate;
         try {
-            birthDate = new SimpleDateFormat("dd.MM.yyyy").parse(birthDateStr);
-        } catch (ParseException e) {
+            birthDate = parseBirthDate(birthDateStr);
+        } catch (DateTimeParseException e) {
             System.out.println("Некорректный формат даты.");
             return;
         }
@@ -233,8 +412,10 @@ class VotingSystem {
         System.out.print("Введите пароль: ");
         String password = scanner.nextLine();
 
-        User newUser = new User(generateId(), login, password, Role.USER, fio, birthDate, null, null); //  уникальные данные
-        users.add(newUser);
+        if (registerUser(login, password, fio, birthDate) == null) {
+            System.out.println("Логин уже занят.");
+            return;
+        }
         System.out.println("Регистрация прошла успешно.");
     }
 
@@ -250,6 +431,7 @@ class VotingSystem {
             return;
         }
 
+        List<User> users = this.users.list();
         System.out.println("\n--- Список пользователей ---");
         for (int i = 0; i < users.size(); i++) {
             System.out.println((i + 1) + ". " + users.get(i));
@@ -261,7 +443,7 @@ class VotingSystem {
         try {
             int index = Integer.parseInt(choice) - 1;
             if (index >= 0 && index < users.size() && users.get(index).getRole() != Role.ADMINISTRATOR) {
-                users.remove(index);
+                removeUser(users.get(index));
                 System.out.println("Пользователь удален.");
             } else if (index >= 0 && index < users.size() && users.get(index).getRole() == Role.ADMINISTRATOR) {
                 System.out.println("Нельзя удалять администраторов.");
@@ -282,6 +464,7 @@ class VotingSystem {
             return;
         }
 
+        List<User> users = this.users.list();
         System.out.println("\n--- Список ЦИК ---");
         for (int i = 0; i < users.size(); i++) {
             if (users.get(i).getRole() == Role.CIC) {
@@ -295,7 +478,7 @@ class VotingSystem {
         try {
             int index = Integer.parseInt(choice) - 1;
             if (index >= 0 && index < users.size() && users.get(index).getRole() == Role.CIC) {
-                users.remove(index);
+                removeUser(users.get(index));
                 System.out.println("ЦИК удален.");
             } else if (choice.equals("0")){
                 return;
@@ -319,8 +502,11 @@ class VotingSystem {
         System.out.print("Введите пароль для нового ЦИК: ");
         String password = scanner.nextLine();
 
-        User newCic = new User(generateId(), login, password, Role.CIC, "ЦИК", null, null, null);
-        users.add(newCic);
+        User newCic = new User(generateId(), login, hasher.hash(password), Role.CIC, "ЦИК", null, null, null);
+        if (!addUser(newCic)) {
+            System.out.println("Логин уже занят.");
+            return;
+        }
         System.out.println("ЦИК создан.");
     }
 
@@ -341,7 +527,7 @@ class VotingSystem {
         try {
             int index = Integer.parseInt(choice) - 1;
             if (index >= 0 && index < candidates.size()) {
-                candidates.remove(index);
+                removeCandidate(candidates.get(index));
                 System.out.println("Кандидат удален.");
             } else if (choice.equals("0"))
             {
@@ -373,8 +559,7 @@ class VotingSystem {
             return;
         }
 
-        Election newElection = new Election(generateId(), endDate);
-        elections.add(newElection);
+        openElection(endDate);
         System.out.println("Голосование создано.");
     }
 
@@ -389,12 +574,11 @@ class VotingSystem {
         System.out.print("Введите пароль кандидата: ");
         String password = scanner.nextLine();
 
-        Candidate newCandidate = new Candidate(generateId(), login, password);
-        candidates.add(newCandidate);
+        if (registerCandidate(login, password) == null) {
+            System.out.println("Логин уже занят.");
+            return;
+        }
         System.out.println("Кандидат добавлен.");
-
-        User newUser = new User(generateId(), login, password, Role.CANDIDATE, "Кандидат", null, null, null);
-        users.add(newUser);
         System.out.println("Пользователь-кандидат добавлен.");
     }
 
@@ -430,6 +614,10 @@ class VotingSystem {
             int electionIndex = Integer.parseInt(electionChoice) - 1;
             if (electionIndex >= 0 && electionIndex < elections.size()) {
                 Election selectedElection = elections.get(electionIndex);
+                if (selectedElection.hasVoted(loggedInUser.getId())) {
+                    System.out.println("Вы уже проголосовали в этом голосовании.");
+                    return;
+                }
 
                 System.out.println("\n--- Список кандидатов для голосования ---");
                 for (int i = 0; i < candidates.size(); i++) {
@@ -443,8 +631,11 @@ class VotingSystem {
                     int candidateIndex = Integer.parseInt(candidateChoice) - 1;
                     if (candidateIndex >= 0 && candidateIndex < candidates.size()) {
                         Candidate selectedCandidate = candidates.get(candidateIndex);
-                        selectedElection.addVote(selectedCandidate);
-                        System.out.println("Ваш голос принят.");
+                        if (castVote(selectedElection, selectedCandidate, loggedInUser)) {
+                            System.out.println("Ваш голос принят.");
+                        } else {
+                            System.out.println("Вы уже проголосовали в этом голосовании.");
+                        }
                     } else if(candidateChoice.equals("0")) {
                         return;
                     }
@@ -465,143 +656,2276 @@ class VotingSystem {
         }
     }
 
-    private int generateId() {
-        return new Random().nextInt(1000);
+    long generateId() {
+        return ids.nextId();
     }
 
-    // Data persistence (Заглушки, необходима реализация сохранения и загрузки данных в файл)
-    private void loadData() {
-        // Заглушка - необходимо реализовать загрузку данных из файла
-        System.out.println("Загрузка данных...");
+    // Изменения данных. Каждое изменение - событие журнала: метод возвращается, когда событие зафиксировано
+    // на диске и применено в памяти. Если журнал не смог его записать, изменение не применяется
+    // и бросается UncheckedIOException
+    private boolean addUser(User user) {
+        if (users.find(user.getLogin()) != null) {
+            return false; // Заведомо отклоненное событие не пишется в журнал
+        }
+        return record(out -> {
+            out.writeByte(USER_ADDED);
+            writeUser(out, user);
+        }, () -> users.add(user));
+    }
 
-        // Создаем тестовых пользователей
-        User admin = new User(generateId(), "admin", "admin", Role.ADMINISTRATOR, "Администратор", null, null, null);
-        users.add(admin);
+    // Пакет пользователей - одно событие журнала и одна запись на диск. Возвращает число добавленных,
+    // пользователи с занятыми логинами пропускаются (при повторе журнала - точно так же)
+    int addUsers(List<User> batch) {
+        int[] added = new int[1];
+        record(out -> {
+            out.writeByte(USERS_ADDED);
+            out.writeInt(batch.size());
+            for (User user : batch) {
+                writeUser(out, user);
+            }
+        }, () -> {
+            added[0] = users.addAll(batch);
+            return added[0] > 0;
+        });
+        return added[0];
+    }
 
-        User cic = new User(generateId(), "cic", "cic", Role.CIC, "ЦИК", null, null, null);
-        users.add(cic);
+    private void removeUser(User user) {
+        record(out -> {
+            out.writeByte(USER_REMOVED);
+            out.writeUTF(user.getLogin());
+        }, () -> users.remove(user));
+    }
 
-        User user1 = new User(generateId(), "user1", "user1", Role.USER, "Пользователь 1", null, null, null);
-        users.add(user1);
+    private void changePassword(User user, String passwordHash) {
+        record(out -> {
+            out.writeByte(PASSWORD_CHANGED);
+            out.writeUTF(user.getLogin());
+            out.writeUTF(passwordHash);
+        }, () -> {
+            user.setPasswordHash(passwordHash);
+            return true;
+        });
+    }
 
+    private void addCandidate(Candidate candidate) {
+        record(out -> {
+            out.writeByte(CANDIDATE_ADDED);
+            writeCandidate(out, candidate);
+        }, () -> candidates.add(candidate));
     }
 
-    private void saveData() {
-        // Заглушка - необходимо реализовать сохранение данных в файл
-        System.out.println("Сохранение данных...");
+    private void removeCandidate(Candidate candidate) {
+        record(out -> {
+            out.writeByte(CANDIDATE_REMOVED);
+            out.writeLong(candidate.getId());
+        }, () -> candidates.remove(candidate));
     }
-}
 
-// Роли пользователей
-enum Role {
-    ADMINISTRATOR,
-    CIC,
-    CANDIDATE,
-    USER
-}
+    private void addElection(Election election) {
+        record(out -> {
+            out.writeByte(ELECTION_CREATED);
+            out.writeLong(election.getId());
+            out.writeLong(election.getEndDate().getTime());
+        }, () -> elections.add(election));
+    }
 
-// Класс пользователя
-class User {
+    // false, если избиратель уже голосовал в этом голосовании; такой голос не учитывается
+    boolean castVote(Election election, Candidate candidate, User voter) {
+        if (election.hasVoted(voter.getId())) {
+            return false; // Одновременные повторы все же попадут в журнал и будут отклонены при применении
+        }
+        long time = System.currentTimeMillis();
+        return record(out -> {
+            out.writeByte(VOTE_CAST);
+            out.writeLong(election.getId());
+            out.writeLong(voter.getId());
+            out.writeLong(candidate.getId());
+            out.writeLong(time);
+        }, () -> {
+            if (!election.markVoted(voter.getId())) {
+                return false;
+            }
+            election.addVote(candidate.getId(), time);
+            return true;
+        });
+    }
 
-    private int id;
-    private String login;
-    private String password;
-    private Role role;
-    private String fio;
-    private Date birthDate;
-    private String snils;
-    private String uniqueData; // Какие-то уникальные данные
+    private boolean record(LedgerWriter event, BooleanSupplier apply) {
+        if (ledger == null) {
+            return apply.getAsBoolean();
+        }
+        boolean applied;
+        try {
+            applied = ledger.append(event, apply);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Change is not saved", e);
+        }
+        if (ledger.isSnapshotDue() && snapshotScheduled.compareAndSet(false, true)) {
+            try {
+                snapshots.execute(this::takeSnapshot);
+            } catch (RejectedExecutionException e) {
+                snapshotScheduled.set(false); // Система закрывается, последний снимок сделает saveData
+            }
+        }
+        return applied;
+    }
 
-    public User(int id, String login, String password, Role role, String fio, Date birthDate, String snils, String uniqueData) {
-        this.id = id;
-        this.login = login;
-        this.password = password;
-        this.role = role;
-        this.fio = fio;
-        this.birthDate = birthDate;
-        this.snils = snils;
-        this.uniqueData = uniqueData;
+    private void takeSnapshot() {
+        try {
+            ledger.snapshot(this::captureState);
+        } catch (IOException e) {
+            System.out.println("Ошибка сохранения снимка: " + e.getMessage()); // События остаются в журнале
+        } finally {
+            snapshotScheduled.set(false);
+        }
     }
 
-    public int getId() {
-        return id;
+    // Повтор события из журнала при загрузке
+    private void applyEvent(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case USER_ADDED:
+                users.add(noteId(readUser(in)));
+                break;
+            case USERS_ADDED: {
+                List<User> batch = new ArrayList<>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    batch.add(noteId(readUser(in)));
+                }
+                users.addAll(batch);
+                break;
+            }
+            case USER_REMOVED: {
+                User user = users.find(in.readUTF());
+                if (user != null) {
+                    users.remove(user);
+                }
+                break;
+            }
+            case PASSWORD_CHANGED: {
+                User user = users.find(in.readUTF());
+                String passwordHash = in.readUTF();
+                if (user != null) {
+                    user.setPasswordHash(passwordHash);
+                }
+                break;
+            }
+            case CANDIDATE_ADDED: {
+                Candidate candidate = readCandidate(in);
+                lastId = Math.max(lastId, candidate.getId());
+                candidates.add(candidate);
+                break;
+            }
+            case CANDIDATE_REMOVED: {
+                long id = in.readLong();
+                candidates.removeIf(candidate -> candidate.getId() == id);
+                break;
+            }
+            case ELECTION_CREATED: {
+                long id = in.readLong();
+                lastId = Math.max(lastId, id);
+                elections.add(new Election(id, new Date(in.readLong())));
+                break;
+            }
+            case IDS_RESERVED:
+                in.readLong(); // Id, выданные без события, нигде не использованы, и их можно выдать снова
+                break;
+            case VOTE_CAST: {
+                Election election = findElection(in.readLong());
+                long voterId = in.readLong();
+                long candidateId = in.readLong();
+                long time = in.readLong();
+                if (election != null && election.markVoted(voterId)) {
+                    election.addVote(candidateId, time);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown ledger event " + type);
+        }
     }
 
-    public String getLogin() {
-        return login;
+    // Id из журнала учитываются и для удаленных потом пользователей, чтобы их id не достались новым
+    private User noteId(User user) {
+        lastId = Math.max(lastId, user.getId());
+        return user;
     }
 
-    public String getPassword() {
-        return password;
+    // Копия состояния для снимка; вызывается под блокировкой журнала, пока события не применяются.
+    // Копируются только ссылки, счетчики и битовые массивы голосовавших, сериализация идет потом.
+    // Хеш пароля может смениться до сериализации - тогда в снимок попадет более новый, а повтор
+    // PASSWORD_CHANGED из журнала установит тот же самый
+    private LedgerWriter captureState() {
+        long issued = ids.lastId(); // Не меньше id любого уже примененного события
+        List<User> userList = users.list();
+        List<Candidate> candidateList = new ArrayList<>(candidates);
+        List<Election> electionList = new ArrayList<>(elections.size());
+        for (Election election : elections) {
+            electionList.add(election.copy());
+        }
+        return out -> writeState(out, issued, userList, candidateList, electionList);
     }
 
-    public Role getRole() {
-        return role;
+    private static void writeState(DataOutputStream out, long lastId, List<User> userList,
+                                   List<Candidate> candidates, List<Election> elections) throws IOException {
+        out.writeLong(lastId);
+        out.writeInt(userList.size());
+        for (User user : userList) {
+            writeUser(out, user);
+        }
+        out.writeInt(candidates.size());
+        for (Candidate candidate : candidates) {
+            writeCandidate(out, candidate);
+        }
+        out.writeInt(elections.size());
+        for (Election election : elections) {
+            out.writeLong(election.getId());
+            out.writeLong(election.getEndDate().getTime());
+            TallySnapshot results = election.getResults();
+            out.writeInt(results.size());
+            for (int i = 0; i < results.size(); i++) {
+                out.writeLong(results.getCandidateId(i));
+                out.writeLong(results.getCount(i));
+            }
+            Map<Long, Long> turnout = election.getLiveResults().getTurnout();
+            out.writeInt(turnout.size());
+            for (Map.Entry<Long, Long> bucket : turnout.entrySet()) {
+                out.writeLong(bucket.getKey());
+                out.writeLong(bucket.getValue());
+            }
+            election.getVoters().write(out);
+        }
     }
 
-    @Override
-    public String toString() {
-        return "User{" + "id=" + id + ", login='" + login + '\'' + ", role=" + role + ", fio='" + fio + '\'' + '}';
+    private void readState(DataInputStream in) throws IOException {
+        lastId = in.readLong(); // В старых снимках - граница блока: один раз будет пропуск, но без повторов
+        for (int i = in.readInt(); i > 0; i--) {
+            users.add(readUser(in));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            candidates.add(readCandidate(in));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            Election election = new Election(in.readLong(), new Date(in.readLong()));
+            for (int j = in.readInt(); j > 0; j--) {
+                election.restoreVotes(in.readLong(), in.readLong());
+            }
+            for (int j = in.readInt(); j > 0; j--) {
+                election.getLiveResults().restoreTurnout(in.readLong(), in.readLong());
+            }
+            election.getVoters().read(in);
+            elections.add(election);
+        }
     }
-}
 
-// Класс кандидата
-class Candidate {
+    Candidate findCandidate(long id) {
+        for (Candidate candidate : candidates) {
+            if (candidate.getId() == id) {
+                return candidate;
+            }
+        }
+        return null;
+    }
 
-    private int id;
-    private String login;
-    private String password;
+    Election findElection(long id) {
+        for (Election election : elections) {
+            if (election.getId() == id) {
+                return election;
+            }
+        }
+        return null;
+    }
 
-    public Candidate(int id, String login, String password) {
-        this.id = id;
-        this.login = login;
-        this.password = password;
+    private static void writeUser(DataOutputStream out, User user) throws IOException {
+        out.writeLong(user.getId());
+        out.writeUTF(user.getLogin());
+        out.writeUTF(user.getPasswordHash());
+        out.writeUTF(user.getRole().name());
+        writeNullable(out, user.getFio());
+        out.writeLong(user.getBirthDate() == null ? Long.MIN_VALUE : user.getBirthDate().getTime());
+        writeNullable(out, user.getSnils());
+        writeNullable(out, user.getUniqueData());
     }
 
-    public int getId() {
-        return id;
+    private static User readUser(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        String login = in.readUTF();
+        String passwordHash = in.readUTF();
+        Role role = Role.valueOf(in.readUTF());
+        String fio = readNullable(in);
+        long birthDate = in.readLong();
+        return new User(id, login, passwordHash, role, fio, birthDate == Long.MIN_VALUE ? null : new Date(birthDate),
+                readNullable(in), readNullable(in));
     }
 
-    public String getLogin() {
-        return login;
+    private static void writeCandidate(DataOutputStream out, Candidate candidate) throws IOException {
+        out.writeLong(candidate.getId());
+        out.writeUTF(candidate.getLogin());
+        out.writeUTF(candidate.getPasswordHash());
     }
 
-    @Override
-    public String toString() {
-        return "Candidate{" + "id=" + id + ", login='" + login + '\'' + '}';
+    private static Candidate readCandidate(DataInputStream in) throws IOException {
+        return new Candidate(in.readLong(), in.readUTF(), in.readUTF());
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // Данные хранятся в каталоге voting-data (-Dvoting.data): журнал событий и последний снимок
+    // Если сохраненные данные не читаются (поврежденный снимок, неизвестное событие), запуск прерывается:
+    // работа с пустым состоянием молча потеряла бы все сохраненное
+    private void loadData() {
+        System.out.println("Загрузка данных...");
+        Path directory = Paths.get(System.getProperty("voting.data", "voting-data"));
+        try {
+            ledger = new EventLedger(directory,
+                    Long.getLong("voting.snapshot.interval", EventLedger.DEFAULT_SNAPSHOT_INTERVAL));
+            ledger.recover(this::readState, this::applyEvent);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Не удалось загрузить данные из " + directory.toAbsolutePath() + ": " + e
+                    + ". Запуск прерван.");
+            throw new IllegalStateException("Cannot load voting data from " + directory, e);
+        }
+        // Id продолжаются сразу после наибольшего выданного, без пропусков между запусками
+        ids = new IdGenerator(lastId);
+
+        if (users.size() == 0) {
+            // Создаем тестовых пользователей при первом запуске
+            addUser(new User(generateId(), "admin", hasher.hash("admin"), Role.ADMINISTRATOR, "Администратор", null, null, null));
+            addUser(new User(generateId(), "cic", hasher.hash("cic"), Role.CIC, "ЦИК", null, null, null));
+            addUser(new User(generateId(), "user1", hasher.hash("user1"), Role.USER, "Пользователь 1", null, null, null));
+        }
+    }
+
+    private void saveData() {
+        System.out.println("Сохранение данных...");
+        if (ledger == null) {
+            return;
+        }
+        snapshots.shutdown();
+        try {
+            snapshots.awaitTermination(1, TimeUnit.MINUTES); // Дождаться начатого фонового снимка
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            ledger.snapshot(this::captureState); // Следующий запуск не будет повторять журнал
+            ledger.close();
+        } catch (IOException e) {
+            System.out.println("Ошибка сохранения данных: " + e.getMessage());
+        }
     }
 }
 
-// Класс выборов
-class Election {
+// Сеанс сетевого клиента: свой вход в систему и разбор команд протокола VotingServer
+class VotingSession {
 
-    private int id;
-    private Date endDate;
-    private Map<Candidate, Integer> votes = new HashMap<>();
+    // Строгий разбор, как у даты рождения: 32.13.2025 25:99 отклоняется, а не переносится на следующие дни
+    private static final DateTimeFormatter END_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("dd.MM.uuuu HH:mm").withResolverStyle(ResolverStyle.STRICT);
 
-    public Election(int id, Date endDate) {
-        this.id = id;
-        this.endDate = endDate;
+    private final VotingSystem system;
+    // Сеанс хранит только логин, id и роль на момент входа; пользователь ищется заново перед каждой
+    // привилегированной командой, чтобы удаление или смена роли действовали на открытые сеансы
+    private String login; // null - вход не выполнен
+    private long userId;
+    private Role role;
+
+    public VotingSession(VotingSystem system) {
+        this.system = system;
     }
 
-    public int getId() {
-        return id;
+    // Ответ - одна строка "OK ..." или "ERR сообщение"
+    public String handle(String line) {
+        String[] parts = line.trim().split("\\s+", 5);
+        try {
+            switch (parts[0].toUpperCase()) {
+                case "LOGIN": {
+                    User user = system.authenticate(argument(parts, 1), argument(parts, 2));
+                    if (user == null) {
+                        login = null;
+                        return "ERR Invalid login or password";
+                    }
+                    login = user.getLogin();
+                    userId = user.getId();
+                    role = user.getRole();
+                    return "OK " + role;
+                }
+                case "LOGOUT":
+                    login = null;
+                    return "OK";
+                case "REGISTER": {
+                    Date birthDate = VotingSystem.parseBirthDate(argument(parts, 3));
+                    String fio = parts.length > 4 ? parts[4] : argument(parts, 1);
+                    User registered = system.registerUser(argument(parts, 1), argument(parts, 2), fio, birthDate);
+                    return registered != null ? "OK " + registered.getId() : "ERR Login is taken";
+                }
+                case "ELECTIONS": {
+                    StringBuilder sb = new StringBuilder("OK");
+                    for (Election election : system.getElections()) {
+                        sb.append(' ').append(election.getId());
+                    }
+                    return sb.toString();
+                }
+                case "CANDIDATES": {
+                    StringBuilder sb = new StringBuilder("OK");
+                    for (Candidate candidate : system.getCandidates()) {
+                        sb.append(' ').append(candidate.getId()).append(':').append(candidate.getLogin());
+                    }
+                    return sb.toString();
+                }
+                case "VOTE": {
+                    User user = currentUser(Role.USER);
+                    if (user == null) {
+                        return "ERR Access denied";
+                    }
+                    Election election = system.findElection(Long.parseLong(argument(parts, 1)));
+                    Candidate candidate = system.findCandidate(Long.parseLong(argument(parts, 2)));
+                    if (election == null || candidate == null) {
+                        return "ERR Unknown election or candidate";
+                    }
+                    return system.castVote(election, candidate, user) ? "OK" : "ERR Already voted";
+                }
+                case "RESULTS": {
+                    if (currentUser(Role.CIC) == null) {
+                        return "ERR Access denied"; // Как и в консоли, промежуточные итоги видит только ЦИК
+                    }
+                    Election election = system.findElection(Long.parseLong(argument(parts, 1)));
+                    if (election == null) {
+                        return "ERR Unknown election";
+                    }
+                    int k = parts.length > 2 ? Integer.parseInt(parts[2]) : 10;
+                    ElectionResults results = election.getLiveResults();
+                    StringBuilder sb = new StringBuilder("OK ").append(results.getTotal());
+                    for (Standing standing : results.top(k)) {
+                        sb.append(' ').append(standing.getCandidateId()).append(':').append(standing.getVotes());
+                    }
+                    return sb.toString();
+                }
+                case "CREATE_ELECTION": {
+                    if (currentUser(Role.CIC) == null) {
+                        return "ERR Access denied";
+                    }
+                    LocalDateTime end = LocalDateTime.parse(argument(parts, 1) + " " + argument(parts, 2), END_DATE_FORMAT);
+                    Date endDate = Date.from(end.atZone(ZoneId.systemDefault()).toInstant());
+                    return "OK " + system.openElection(endDate).getId();
+                }
+                case "ADD_CANDIDATE": {
+                    if (currentUser(Role.CIC) == null) {
+                        return "ERR Access denied";
+                    }
+                    Candidate candidate = system.registerCandidate(argument(parts, 1), argument(parts, 2));
+                    return candidate != null ? "OK " + candidate.getId() : "ERR Login is taken";
+                }
+                default:
+                    return "ERR Unknown command";
+            }
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            return "ERR " + e.getMessage();
+        } catch (UncheckedIOException e) {
+            return "ERR Storage failure";
+        }
     }
 
-    public Date getEndDate() {
-        return endDate;
+    // null - вход не выполнен, пользователь удален, заменен другим с тем же логином или сменил роль
+    private User currentUser(Role required) {
+        if (login == null || role != required) {
+            return null;
+        }
+        User user = system.findUser(login);
+        if (user == null || user.getId() != userId || user.getRole() != required) {
+            return null;
+        }
+        return user;
     }
 
-    public void addVote(Candidate candidate) {
-        votes.put(candidate, votes.getOrDefault(candidate, 0) + 1);
+    private static String argument(String[] parts, int index) {
+        if (index >= parts.length) {
+            throw new IllegalArgumentException("Missing argument");
+        }
+        return parts[index];
     }
+}
 
-    public Map<Candidate, Integer> getVotes() {
-        return votes;
+// Сетевой доступ к системе голосования: текстовый протокол по строкам через TCP на loopback.
+// Каждое соединение обслуживает свой виртуальный поток, поэтому тысячи ожидающих сеансов почти ничего не стоят.
+// Запуск: java VotingServer [порт]
+// Команды: LOGIN логин пароль | LOGOUT | REGISTER логин пароль dd.MM.yyyy [ФИО] | ELECTIONS | CANDIDATES |
+// VOTE idГолосования idКандидата | RESULTS idГолосования [k] (ЦИК) | CREATE_ELECTION dd.MM.yyyy HH:mm (ЦИК) |
+// ADD_CANDIDATE логин пароль (ЦИК) | QUIT
+class VotingServer implements Closeable {
+
+    static final int DEFAULT_PORT = 7070;
+
+    private final VotingSystem system;
+    private final ServerSocket serverSocket;
+    private final ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    public VotingServer(VotingSystem system, int port) throws IOException {
+        this.system = system;
+        this.serverSocket = new ServerSocket(port, 4096, InetAddress.getLoopbackAddress());
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        VotingSystem system = new VotingSystem();
+        system.open();
+        VotingServer server = new VotingServer(system, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            system.close();
+        }));
+        System.out.println("Сервер голосования: " + server.serverSocket.getLocalSocketAddress());
+        server.serve();
+    }
+
+    public void serve() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.add(socket);
+                sessions.execute(() -> session(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.out.println("Ошибка соединения: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void session(Socket socket) {
+        VotingSession session = new VotingSession(system);
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            socket.setTcpNoDelay(true);
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                boolean quit = line.trim().equalsIgnoreCase("QUIT");
+                out.write(quit ? "OK" : session.handle(line));
+                out.write('\n');
+                out.flush();
+                if (quit) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Клиент отключился
+        } finally {
+            connections.remove(socket);
+        }
     }
 
     @Override
-    public String toString() {
-        return "Election{" + "id=" + id + ", endDate=" + new SimpleDateFormat("dd.MM.yyyy HH:mm").format(endDate) + '}';
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.out.println("Ошибка остановки сервера: " + e.getMessage());
+        }
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Соединение уже закрыто
+            }
+        }
+        sessions.shutdown();
+        try {
+            sessions.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// Нагрузочный тест сервера: каждый избиратель в своем виртуальном потоке и соединении регистрируется,
+// входит, голосует и проверяет, что повторный голос отклонен; все сеансы стартуют одновременно. Печатает пропускную способность и перцентили
+// задержек по командам. Хеширование паролей на сервере стоит удешевить: -Dvoting.hash.iterations=1000
+// Запуск: java VotingLoadTest [хост] [порт] [число избирателей]
+class VotingLoadTest {
+
+    private static final String[] COMMANDS = {"REGISTER", "LOGIN", "VOTE"};
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : VotingServer.DEFAULT_PORT;
+        int voters = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        String run = Long.toString(System.currentTimeMillis(), 36); // Логины не пересекаются с прошлыми запусками
+
+        // Голосование и кандидаты для теста
+        long electionId;
+        long[] candidateIds = new long[5];
+        try (Socket socket = new Socket(host, port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            expect(request(in, out, "LOGIN cic cic"));
+            electionId = Long.parseLong(expect(request(in, out, "CREATE_ELECTION 31.12.2099 23:59")));
+            for (int i = 0; i < candidateIds.length; i++) {
+                candidateIds[i] = Long.parseLong(expect(request(in, out, "ADD_CANDIDATE lt" + run + "c" + i + " pw")));
+            }
+        }
+
+        long[][] latencies = new long[COMMANDS.length][voters];
+        LongAdder errors = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long begin;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < voters; i++) {
+                int voter = i;
+                executor.execute(() -> {
+                    String login = "lt" + run + "v" + voter;
+                    String[] requests = {
+                            "REGISTER " + login + " pw 01.01.1990 Избиратель " + voter,
+                            "LOGIN " + login + " pw",
+                            "VOTE " + electionId + " " + candidateIds[voter % candidateIds.length]
+                    };
+                    try (Socket socket = new Socket(host, port);
+                         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                         Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+                        start.await();
+                        for (int c = 0; c < requests.length; c++) {
+                            long t = System.nanoTime();
+                            String response = request(in, out, requests[c]);
+                            latencies[c][voter] = System.nanoTime() - t;
+                            if (response == null || !response.startsWith("OK")) {
+                                errors.increment();
+                                return;
+                            }
+                        }
+                        if (!"ERR Already voted".equals(request(in, out, requests[2]))) {
+                            errors.increment(); // Повторный голос должен быть отклонен
+                        }
+                        request(in, out, "QUIT");
+                    } catch (IOException | InterruptedException e) {
+                        errors.increment();
+                    }
+                });
+            }
+            begin = System.nanoTime();
+            start.countDown();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        System.out.printf("Избирателей: %d, ошибок: %d, время: %.2f с, запросов/с: %.0f%n",
+                voters, errors.sum(), seconds, voters * COMMANDS.length / seconds);
+        for (int c = 0; c < COMMANDS.length; c++) {
+            long[] sorted = latencies[c].clone();
+            Arrays.sort(sorted);
+            System.out.printf("%-9s p50 %7.2f мс  p90 %7.2f мс  p99 %7.2f мс  p99.9 %7.2f мс  max %7.2f мс%n", COMMANDS[c],
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    percentile(sorted, 0.999), sorted[sorted.length - 1] / 1e6);
+        }
+    }
+
+    private static String request(BufferedReader in, Writer out, String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+        out.flush();
+        return in.readLine();
+    }
+
+    private static String expect(String response) throws IOException {
+        if (response == null || !response.startsWith("OK")) {
+            throw new IOException("Unexpected response: " + response);
+        }
+        return response.length() > 3 ? response.substring(3) : "";
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+    }
+}
+
+// Массовый импорт избирателей из CSV: логин,пароль,ФИО,дата рождения (dd.MM.yyyy), без кавычек; первая строка
+// может быть заголовком. Чтение идет потоком: строки собираются в порции, порции разбираются и проверяются
+// параллельно, а один поток записи принимает их строго в порядке файла, отсеивает занятые и повторные логины
+// и добавляет пользователей пакетами - одно событие журнала на пакет. Очередь порций ограничена, поэтому
+// память не зависит от размера файла.
+// Пароль в виде "pbkdf2$..." берется как готовый хеш; открытые пароли хешируются при разборе, и тогда
+// время импорта определяет стоимость хеширования (-Dvoting.hash.iterations)
+// Запуск: java VoterImport файл.csv [потоков разбора]
+class VoterImport {
+
+    private static final int CHUNK_LINES = 2048;
+    private static final int BATCH_SIZE = 4096;
+    private static final int MAX_LOGIN_LENGTH = 64;
+    private static final int MAX_EXAMPLES = 10;
+
+    // Причины отказа - индексы в rejected
+    private static final int FORMAT = 0;
+    private static final int DATE = 1;
+    private static final int DUPLICATE = 2;
+
+    private final VotingSystem system;
+    private final int threads;
+
+    private long imported;
+    private final long[] rejected = new long[3];
+    private final List<String> examples = new ArrayList<>(); // первые отклоненные строки с причиной
+
+    public VoterImport(VotingSystem system, int threads) {
+        this.system = system;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Использование: java VoterImport файл.csv [потоков разбора]");
+            return;
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        VotingSystem system = new VotingSystem();
+        system.open();
+        VoterImport voterImport = new VoterImport(system, threads);
+        long start = System.nanoTime();
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            voterImport.run(in);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        system.close();
+        voterImport.printReport(seconds);
+    }
+
+    // Разобранная строка: либо пользователь без id, либо причина отказа
+    private static final class Row {
+        final long line;
+        final String login;
+        final String passwordHash;
+        final String fio;
+        final Date birthDate;
+        final String error;
+        final int reason;
+
+        Row(long line, String login, String passwordHash, String fio, Date birthDate) {
+            this(line, login, passwordHash, fio, birthDate, null, -1);
+        }
+
+        Row(long line, String error, int reason) {
+            this(line, null, null, null, null, error, reason);
+        }
+
+        private Row(long line, String login, String passwordHash, String fio, Date birthDate, String error, int reason) {
+            this.line = line;
+            this.login = login;
+            this.passwordHash = passwordHash;
+            this.fio = fio;
+            this.birthDate = birthDate;
+            this.error = error;
+            this.reason = reason;
+        }
+    }
+
+    public void run(BufferedReader in) throws IOException, InterruptedException {
+        ExecutorService parsers = Executors.newFixedThreadPool(threads);
+        BlockingQueue<Future<List<Row>>> chunks = new ArrayBlockingQueue<>(threads * 4);
+        Future<List<Row>> end = CompletableFuture.completedFuture(Collections.emptyList());
+        FutureTask<Void> writer = new FutureTask<>(() -> {
+            write(chunks, end);
+            return null;
+        });
+        new Thread(writer, "voter-import-writer").start();
+        try {
+            long lineNumber = 0;
+            List<String> lines = new ArrayList<>(CHUNK_LINES);
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber == 1 && line.toLowerCase().startsWith("login")) {
+                    continue; // заголовок
+                }
+                lines.add(line);
+                if (lines.size() == CHUNK_LINES) {
+                    put(chunks, submit(parsers, lines, lineNumber - lines.size() + 1), writer);
+                    lines = new ArrayList<>(CHUNK_LINES);
+                }
+            }
+            if (!lines.isEmpty()) {
+                put(chunks, submit(parsers, lines, lineNumber - lines.size() + 1), writer);
+            }
+            put(chunks, end, writer);
+            writer.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed", e.getCause());
+        } finally {
+            parsers.shutdownNow();
+        }
+    }
+
+    // Если поток записи упал, очередь больше не разгружается: вместо вечного ожидания - его ошибка
+    private static void put(BlockingQueue<Future<List<Row>>> chunks, Future<List<Row>> chunk, Future<Void> writer)
+            throws InterruptedException, ExecutionException {
+        while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            if (writer.isDone()) {
+                writer.get();
+                throw new ExecutionException(new IllegalStateException("Writer stopped"));
+            }
+        }
+    }
+
+    private Future<List<Row>> submit(ExecutorService parsers, List<String> lines, long firstLine) {
+        return parsers.submit(() -> {
+            List<Row> rows = new ArrayList<>(lines.size());
+            for (int i = 0; i < lines.size(); i++) {
+                rows.add(parse(lines.get(i), firstLine + i));
+            }
+            return rows;
+        });
+    }
+
+    private Row parse(String text, long line) {
+        String[] fields = text.split(",", -1);
+        if (fields.length != 4) {
+            return new Row(line, "ожидается 4 поля, найдено " + fields.length, FORMAT);
+        }
+        String login = fields[0].trim();
+        String password = fields[1].trim();
+        String fio = fields[2].trim();
+        if (login.isEmpty() || login.length() > MAX_LOGIN_LENGTH || login.chars().anyMatch(Character::isWhitespace)) {
+            return new Row(line, "некорректный логин", FORMAT);
+        }
+        if (password.isEmpty() || fio.isEmpty()) {
+            return new Row(line, "пустой пароль или ФИО", FORMAT);
+        }
+        Date birthDate;
+        try {
+            birthDate = VotingSystem.parseBirthDate(fields[3]);
+        } catch (DateTimeParseException e) {
+            return new Row(line, "некорректная дата рождения '" + fields[3].trim() + "'", DATE);
+        }
+        if (password.startsWith("pbkdf2$") && !PasswordHasher.isHash(password)) {
+            // Испорченный хеш или число итераций сверх PasswordHasher.MAX_ITERATIONS - не пароль открытым текстом
+            return new Row(line, "некорректный хеш пароля", FORMAT);
+        }
+        String passwordHash = PasswordHasher.isHash(password) ? password : system.hashPassword(password);
+        return new Row(line, login, passwordHash, fio, birthDate);
+    }
+
+    // Порции приходят в порядке файла, поэтому из повторяющихся логинов всегда остается первый
+    private void write(BlockingQueue<Future<List<Row>>> chunks, Future<List<Row>> end) throws Exception {
+        List<User> batch = new ArrayList<>(BATCH_SIZE);
+        Set<String> batchLogins = new HashSet<>();
+        for (Future<List<Row>> chunk = chunks.take(); chunk != end; chunk = chunks.take()) {
+            for (Row row : chunk.get()) {
+                if (row.error != null) {
+                    reject(row.line, row.error, row.reason);
+                } else if (!batchLogins.add(row.login) || system.isLoginTaken(row.login)) {
+                    reject(row.line, "логин " + row.login + " уже занят", DUPLICATE);
+                } else {
+                    batch.add(new User(system.generateId(), row.login, row.passwordHash, Role.USER,
+                            row.fio, row.birthDate, null, null));
+                    if (batch.size() == BATCH_SIZE) {
+                        flush(batch);
+                        batchLogins.clear();
+                    }
+                }
+            }
+        }
+        flush(batch);
+    }
+
+    private void flush(List<User> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        int added = system.addUsers(batch);
+        imported += added;
+        rejected[DUPLICATE] += batch.size() - added; // Логин заняли параллельно, например через сервер
+        batch.clear();
+    }
+
+    private void reject(long line, String message, int reason) {
+        rejected[reason]++;
+        if (examples.size() < MAX_EXAMPLES) {
+            examples.add("строка " + line + ": " + message);
+        }
+    }
+
+    public void printReport(double seconds) {
+        long total = rejected[FORMAT] + rejected[DATE] + rejected[DUPLICATE];
+        long rows = imported + total;
+        System.out.printf("Строк: %d, импортировано: %d, отклонено: %d (формат: %d, дата: %d, логин занят: %d)%n",
+                rows, imported, total, rejected[FORMAT], rejected[DATE], rejected[DUPLICATE]);
+        System.out.printf("Время: %.2f с, строк/с: %.0f%n", seconds, rows / Math.max(seconds, 1e-9));
+        for (String example : examples) {
+            System.out.println("  " + example);
+        }
+    }
+}
+
+// Справочник пользователей с поиском по логину за O(1). Порядок добавления сохраняется для меню администратора
+class UserDirectory {
+
+    private final Map<String, User> byLogin = new LinkedHashMap<>();
+    private final Lock lock = new ReentrantLock();
+
+    // false, если логин уже занят
+    public boolean add(User user) {
+        lock.lock();
+        try {
+            return byLogin.putIfAbsent(user.getLogin(), user) == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Все пользователи пакета под одной блокировкой; возвращает число добавленных
+    public int addAll(List<User> batch) {
+        lock.lock();
+        try {
+            int added = 0;
+            for (User user : batch) {
+                if (byLogin.putIfAbsent(user.getLogin(), user) == null) {
+                    added++;
+                }
+            }
+            return added;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public User find(String login) {
+        lock.lock();
+        try {
+            return byLogin.get(login);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean remove(User user) {
+        lock.lock();
+        try {
+            return byLogin.remove(user.getLogin(), user);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return byLogin.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Копия списка пользователей в порядке добавления
+    public List<User> list() {
+        lock.lock();
+        try {
+            return new ArrayList<>(byLogin.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+// Хеширование паролей PBKDF2-HMAC-SHA256 со случайной солью. Число итераций задает стоимость проверки
+// и хранится в самом хеше: "pbkdf2$итерации$соль$хеш" (Base64), поэтому его можно менять без потери старых паролей
+class PasswordHasher {
+
+    static final int DEFAULT_ITERATIONS = 210_000;
+    // Больше итераций не принимается ни в настройке, ни в сохраненном или импортированном хеше:
+    // строка pbkdf2$2147483647$... иначе подвешивала бы каждый вход этого пользователя
+    static final int MAX_ITERATIONS = 10_000_000;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+    private final String dummyHash; // для проверки несуществующего логина
+
+    public PasswordHasher(int iterations) {
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("Iterations must be between 1 and " + MAX_ITERATIONS + ": " + iterations);
+        }
+        this.iterations = iterations;
+        dummyHash = hash(Long.toString(random.nextLong()));
+    }
+
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return "pbkdf2$" + iterations + "$" + encoder.encodeToString(salt) + "$"
+                + encoder.encodeToString(derive(password, salt, iterations));
+    }
+
+    public boolean verify(String password, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !parts[0].equals("pbkdf2")) {
+            return false;
+        }
+        try {
+            int storedIterations = Integer.parseInt(parts[1]);
+            if (storedIterations < 1 || storedIterations > MAX_ITERATIONS) {
+                return false;
+            }
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] expected = decoder.decode(parts[3]);
+            byte[] actual = derive(password, decoder.decode(parts[2]), storedIterations);
+            return MessageDigest.isEqual(expected, actual); // Сравнение за постоянное время
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // Строка в формате hash(): так можно импортировать уже захешированные пароли
+    public static boolean isHash(String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !parts[0].equals("pbkdf2")) {
+            return false;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            int storedIterations = Integer.parseInt(parts[1]);
+            return storedIterations > 0 && storedIterations <= MAX_ITERATIONS && decoder.decode(parts[2]).length > 0
+                    && decoder.decode(parts[3]).length == HASH_BITS / 8;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // Проверка для несуществующего логина: столько же итераций, сколько у нового хеша, всегда false.
+    // Иначе по времени ответа можно было бы отличить существующие логины от несуществующих
+    public boolean verifyMissing(String password) {
+        verify(password, dummyHash);
+        return false;
+    }
+
+    // Хеш создан с другим числом итераций
+    public boolean needsRehash(String stored) {
+        return !stored.startsWith("pbkdf2$" + iterations + "$");
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("Password hashing is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
+
+// Роли пользователей
+enum Role {
+    ADMINISTRATOR,
+    CIC,
+    CANDIDATE,
+    USER
+}
+
+// Класс пользователя
+class User {
+
+    private long id;
+    private String login;
+    private volatile String passwordHash; // Меняется при смене стоимости хеширования, читается из других сеансов
+    private Role role;
+    private String fio;
+    private Date birthDate;
+    private String snils;
+    private String uniqueData; // Какие-то уникальные данные
+
+    public User(long id, String login, String passwordHash, Role role, String fio, Date birthDate, String snils, String uniqueData) {
+        this.id = id;
+        this.login = login;
+        this.passwordHash = passwordHash;
+        this.role = role;
+        this.fio = fio;
+        this.birthDate = birthDate;
+        this.snils = snils;
+        this.uniqueData = uniqueData;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getLogin() {
+        return login;
+    }
+
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    public void setPasswordHash(String passwordHash) {
+        this.passwordHash = passwordHash;
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public String getFio() {
+        return fio;
+    }
+
+    public Date getBirthDate() {
+        return birthDate;
+    }
+
+    public String getSnils() {
+        return snils;
+    }
+
+    public String getUniqueData() {
+        return uniqueData;
+    }
+
+    @Override
+    public String toString() {
+        return "User{" + "id=" + id + ", login='" + login + '\'' + ", role=" + role + ", fio='" + fio + '\'' + '}';
+    }
+}
+
+// Класс кандидата
+class Candidate {
+
+    private long id;
+    private String login;
+    private String passwordHash;
+
+    public Candidate(long id, String login, String passwordHash) {
+        this.id = id;
+        this.login = login;
+        this.passwordHash = passwordHash;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getLogin() {
+        return login;
+    }
+
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    @Override
+    public String toString() {
+        return "Candidate{" + "id=" + id + ", login='" + login + '\'' + '}';
+    }
+}
+
+// Класс выборов
+class Election {
+
+    private long id;
+    private Date endDate;
+    private final VoteTally tally = new VoteTally();
+    private final ElectionResults liveResults = new ElectionResults(ElectionResults.HOUR);
+    private final VoterBitmap voters;
+
+    public Election(long id, Date endDate) {
+        this(id, endDate, new VoterBitmap());
+    }
+
+    private Election(long id, Date endDate, VoterBitmap voters) {
+        this.id = id;
+        this.endDate = endDate;
+        this.voters = voters;
+    }
+
+    // Независимая копия для снимка: голоса, явка и проголосовавшие на данный момент
+    Election copy() {
+        Election copy = new Election(id, endDate, voters.copy());
+        TallySnapshot results = getResults();
+        for (int i = 0; i < results.size(); i++) {
+            copy.restoreVotes(results.getCandidateId(i), results.getCount(i));
+        }
+        for (Map.Entry<Long, Long> bucket : liveResults.getTurnout().entrySet()) {
+            copy.liveResults.restoreTurnout(bucket.getKey(), bucket.getValue());
+        }
+        return copy;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Date getEndDate() {
+        return endDate;
+    }
+
+    public void addVote(Candidate candidate) {
+        addVote(candidate.getId(), System.currentTimeMillis());
+    }
+
+    public void addVote(long candidateId, long timeMillis) {
+        tally.addVote(candidateId);
+        liveResults.record(candidateId, 1, timeMillis);
+    }
+
+    // Отмечает избирателя; false, если он уже голосовал. Отметка атомарна, поэтому из двух
+    // одновременных попыток проходит ровно одна
+    public boolean markVoted(long userId) {
+        return voters.add(userId);
+    }
+
+    public boolean hasVoted(long userId) {
+        return voters.contains(userId);
+    }
+
+    VoterBitmap getVoters() {
+        return voters;
+    }
+
+    // Восстановление голосов из снимка; явка восстанавливается отдельно
+    public void restoreVotes(long candidateId, long count) {
+        tally.addVotes(candidateId, count);
+        liveResults.record(candidateId, count, -1);
+    }
+
+    // Итоги, которые обновляются с каждым голосом: всего, доли, лидеры, явка
+    public ElectionResults getLiveResults() {
+        return liveResults;
+    }
+
+    // Голоса по id кандидата на один момент времени
+    public TallySnapshot getResults() {
+        return tally.snapshot();
+    }
+
+    @Override
+    public String toString() {
+        return "Election{" + "id=" + id + ", endDate=" + new SimpleDateFormat("dd.MM.yyyy HH:mm").format(endDate) + '}';
+    }
+}
+
+// Итоги голосования, обновляемые с каждым голосом: общее число голосов, голоса и доля кандидата,
+// таблица лидеров и явка по интервалам времени. Кандидаты хранятся в массиве, упорядоченном по убыванию
+// голосов, и каждый знает свое место в нем: голос поднимает кандидата обменом с первым из равных
+// ему по голосам, поэтому таблица всегда готова и top(k) - копия первых k мест. Голоса и так
+// применяются по одному под блокировкой журнала, так что своя блокировка здесь не мешает
+class ElectionResults {
+
+    static final long HOUR = 60 * 60 * 1000L;
+
+    private final long bucketMillis;
+    private final Lock lock = new ReentrantLock();
+
+    // Поиск слота кандидата по id (открытая адресация, без упаковки)
+    private long[] keys = new long[16];
+    private int[] slots = new int[16]; // слот + 1, 0 - свободно
+
+    // По слоту
+    private long[] ids = new long[8];
+    private long[] votes = new long[8];
+    private int[] position = new int[8];
+    private int[] ranked = new int[8]; // слоты по убыванию голосов
+    private int size;
+    private long total;
+
+    private long[] turnout = new long[0]; // голоса по интервалам, начиная с интервала turnoutOrigin
+    private long turnoutOrigin;
+
+    public ElectionResults(long bucketMillis) {
+        this.bucketMillis = bucketMillis;
+    }
+
+    // timeMillis < 0 - время неизвестно, явка не учитывается
+    public void record(long candidateId, long count, long timeMillis) {
+        lock.lock();
+        try {
+            int slot = slotOf(candidateId);
+            votes[slot] += count;
+            total += count;
+            promote(slot);
+            if (timeMillis >= 0) {
+                addTurnout(Math.floorDiv(timeMillis, bucketMillis), count);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void restoreTurnout(long bucketStartMillis, long count) {
+        lock.lock();
+        try {
+            addTurnout(Math.floorDiv(bucketStartMillis, bucketMillis), count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getTotal() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getVotes(long candidateId) {
+        lock.lock();
+        try {
+            int slot = find(candidateId);
+            return slot < 0 ? 0 : votes[slot];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getShare(long candidateId) {
+        lock.lock();
+        try {
+            int slot = find(candidateId);
+            return slot < 0 || total == 0 ? 0 : (double) votes[slot] / total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Первые k мест; порядок кандидатов с равным числом голосов не определен
+    public List<Standing> top(int k) {
+        lock.lock();
+        try {
+            int n = Math.min(k, size);
+            List<Standing> result = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                int slot = ranked[i];
+                result.add(new Standing(ids[slot], votes[slot], total == 0 ? 0 : (double) votes[slot] / total));
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Голоса в интервал, содержащий timeMillis
+    public long getTurnout(long timeMillis) {
+        lock.lock();
+        try {
+            long index = Math.floorDiv(timeMillis, bucketMillis) - turnoutOrigin;
+            return index < 0 || index >= turnout.length ? 0 : turnout[(int) index];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Начало интервала -> голоса, только непустые интервалы
+    public SortedMap<Long, Long> getTurnout() {
+        lock.lock();
+        try {
+            SortedMap<Long, Long> result = new TreeMap<>();
+            for (int i = 0; i < turnout.length; i++) {
+                if (turnout[i] != 0) {
+                    result.put((turnoutOrigin + i) * bucketMillis, turnout[i]);
+                }
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Поднимает слот выше всех, у кого теперь меньше голосов
+    private void promote(int slot) {
+        int from = position[slot];
+        long count = votes[slot];
+        // Первое место с меньшим числом голосов (массив упорядочен по убыванию)
+        int low = 0;
+        int high = from;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (votes[ranked[middle]] < count) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        int to = low;
+        if (to == from) {
+            return;
+        }
+        if (votes[ranked[to]] == votes[ranked[from - 1]]) {
+            // Все обгоненные равны между собой - достаточно обмена
+            int other = ranked[to];
+            ranked[to] = slot;
+            ranked[from] = other;
+            position[other] = from;
+        } else {
+            System.arraycopy(ranked, to, ranked, to + 1, from - to);
+            ranked[to] = slot;
+            for (int i = to + 1; i <= from; i++) {
+                position[ranked[i]] = i;
+            }
+        }
+        position[slot] = to;
+    }
+
+    private void addTurnout(long bucket, long count) {
+        if (turnout.length == 0) {
+            turnout = new long[16];
+            turnoutOrigin = bucket;
+        } else if (bucket < turnoutOrigin) {
+            long[] grown = new long[(int) (turnout.length + turnoutOrigin - bucket)];
+            System.arraycopy(turnout, 0, grown, (int) (turnoutOrigin - bucket), turnout.length);
+            turnout = grown;
+            turnoutOrigin = bucket;
+        } else if (bucket - turnoutOrigin >= turnout.length) {
+            turnout = Arrays.copyOf(turnout, (int) Math.max(turnout.length * 2L, bucket - turnoutOrigin + 1));
+        }
+        turnout[(int) (bucket - turnoutOrigin)] += count;
+    }
+
+    private int find(long candidateId) {
+        int mask = keys.length - 1;
+        for (int i = hash(candidateId, mask); slots[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == candidateId) {
+                return slots[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    private int slotOf(long candidateId) {
+        int slot = find(candidateId);
+        if (slot >= 0) {
+            return slot;
+        }
+        slot = size++;
+        if (slot == ids.length) {
+            ids = Arrays.copyOf(ids, slot * 2);
+            votes = Arrays.copyOf(votes, slot * 2);
+            position = Arrays.copyOf(position, slot * 2);
+            ranked = Arrays.copyOf(ranked, slot * 2);
+        }
+        ids[slot] = candidateId;
+        ranked[slot] = slot; // Новый кандидат - в конце таблицы
+        position[slot] = slot;
+        if (size * 2 > keys.length) {
+            long[] oldKeys = keys;
+            int[] oldSlots = slots;
+            keys = new long[oldKeys.length * 2];
+            slots = new int[oldSlots.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldSlots[i] != 0) {
+                    insert(oldKeys[i], oldSlots[i]);
+                }
+            }
+        }
+        insert(candidateId, slot + 1);
+        return slot;
+    }
+
+    private void insert(long key, int value) {
+        int mask = keys.length - 1;
+        int i = hash(key, mask);
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        slots[i] = value;
+    }
+
+    private static int hash(long id, int mask) {
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+}
+
+// Место в таблице лидеров
+class Standing {
+
+    private final long candidateId;
+    private final long votes;
+    private final double share;
+
+    public Standing(long candidateId, long votes, double share) {
+        this.candidateId = candidateId;
+        this.votes = votes;
+        this.share = share;
+    }
+
+    public long getCandidateId() {
+        return candidateId;
+    }
+
+    public long getVotes() {
+        return votes;
+    }
+
+    public double getShare() {
+        return share;
+    }
+
+    @Override
+    public String toString() {
+        return "Standing{" + "candidateId=" + candidateId + ", votes=" + votes + ", share=" + share + '}';
+    }
+}
+
+// Подсчет голосов без блокировок: у каждого кандидата свой LongAdder, поиск счетчика по id идет
+// по неизменяемой таблице с открытой адресацией (без упаковки id). Таблица заменяется целиком
+// только при появлении нового кандидата
+class VoteTally {
+
+    private static final int SNAPSHOT_ATTEMPTS = 8;
+
+    private static final class Table {
+        final long[] ids;
+        final LongAdder[] counters; // null - свободная ячейка
+        final long[] order;          // id в порядке добавления
+        final int size;
+
+        Table(int capacity, long[] order, int size) {
+            ids = new long[capacity];
+            counters = new LongAdder[capacity];
+            this.order = order;
+            this.size = size;
+        }
+
+        LongAdder find(long id) {
+            int mask = ids.length - 1;
+            for (int i = slot(id, mask); counters[i] != null; i = (i + 1) & mask) {
+                if (ids[i] == id) {
+                    return counters[i];
+                }
+            }
+            return null;
+        }
+
+        void put(long id, LongAdder counter) {
+            int mask = ids.length - 1;
+            int i = slot(id, mask);
+            while (counters[i] != null) {
+                i = (i + 1) & mask;
+            }
+            ids[i] = id;
+            counters[i] = counter;
+        }
+
+        static int slot(long id, int mask) {
+            return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+    }
+
+    private volatile Table table = new Table(16, new long[0], 0);
+    private final Lock lock = new ReentrantLock();
+
+    public void addVote(long candidateId) {
+        LongAdder counter = table.find(candidateId);
+        if (counter == null) {
+            counter = register(candidateId);
+        }
+        counter.increment();
+    }
+
+    public void addVotes(long candidateId, long count) {
+        LongAdder counter = table.find(candidateId);
+        if (counter == null) {
+            counter = register(candidateId);
+        }
+        counter.add(count);
+    }
+
+    public long getVotes(long candidateId) {
+        LongAdder counter = table.find(candidateId);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    // Два прохода подряд с одинаковыми суммами означают, что именно такие значения были у всех счетчиков
+    // одновременно - в промежутке между проходами (счетчики только растут). Если голосование идет
+    // слишком плотно и проходы не совпадают, возвращается последний проход с consistent = false
+    public TallySnapshot snapshot() {
+        Table current = table;
+        long[] previous = collect(current);
+        for (int attempt = 1; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+            Table next = table;
+            long[] counts = collect(next);
+            if (next == current && Arrays.equals(previous, counts)) {
+                return new TallySnapshot(Arrays.copyOf(current.order, current.size), counts, true);
+            }
+            current = next;
+            previous = counts;
+        }
+        return new TallySnapshot(Arrays.copyOf(current.order, current.size), previous, false);
+    }
+
+    private long[] collect(Table current) {
+        long[] counts = new long[current.size];
+        for (int i = 0; i < current.size; i++) {
+            counts[i] = current.find(current.order[i]).sum();
+        }
+        return counts;
+    }
+
+    private LongAdder register(long candidateId) {
+        lock.lock();
+        try {
+            Table current = table;
+            LongAdder counter = current.find(candidateId);
+            if (counter != null) {
+                return counter; // Другой поток успел добавить
+            }
+            int capacity = current.ids.length;
+            if ((current.size + 1) * 2 > capacity) {
+                capacity *= 2; // Заполненность не больше половины
+            }
+            long[] order = Arrays.copyOf(current.order, current.size + 1);
+            order[current.size] = candidateId;
+            Table next = new Table(capacity, order, current.size + 1);
+            for (int i = 0; i < current.size; i++) {
+                next.put(current.order[i], current.find(current.order[i]));
+            }
+            counter = new LongAdder();
+            next.put(candidateId, counter);
+            table = next;
+            return counter;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+// Результаты на один момент времени: голоса по id кандидата в порядке первого голоса
+class TallySnapshot {
+
+    private final long[] candidateIds;
+    private final long[] counts;
+    private final long total;
+    private final boolean consistent;
+
+    public TallySnapshot(long[] candidateIds, long[] counts, boolean consistent) {
+        this.candidateIds = candidateIds;
+        this.counts = counts;
+        this.consistent = consistent;
+        long sum = 0;
+        for (long count : counts) {
+            sum += count;
+        }
+        this.total = sum;
+    }
+
+    public int size() {
+        return candidateIds.length;
+    }
+
+    public long getCandidateId(int index) {
+        return candidateIds[index];
+    }
+
+    public long getCount(int index) {
+        return counts[index];
+    }
+
+    public long getVotes(long candidateId) {
+        for (int i = 0; i < candidateIds.length; i++) {
+            if (candidateIds[i] == candidateId) {
+                return counts[i];
+            }
+        }
+        return 0;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    // Снимок точный; false - значения счетчиков сняты не в один момент (голосование шло слишком плотно)
+    public boolean isConsistent() {
+        return consistent;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TallySnapshot{total=").append(total);
+        for (int i = 0; i < candidateIds.length; i++) {
+            sb.append(", ").append(candidateIds[i]).append('=').append(counts[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
+
+// Множество id проголосовавших: двухуровневый битовый массив в духе Roaring. Старшие биты id выбирают
+// контейнер на 65536 бит (8 КБ), младшие - бит в нем; контейнеры создаются при первом голосе из своего
+// диапазона. id идут подряд и после перезапуска (IdGenerator); пропуски в id пользователей дают только
+// голосования, кандидаты и отклоненные регистрации, которые берут id из той же последовательности.
+// Поэтому контейнеры почти заполнены и 50 млн избирателей занимают около 6 МБ (1 бит на id плюс
+// ссылка на контейнер); каждый миллион id, не доставшихся избирателям, добавляет до 125 КБ.
+// Проверка и отметка - один compareAndSet без блокировок; блокировка нужна только при создании контейнера
+class VoterBitmap {
+
+    private static final int CONTAINER_BITS = 16;
+    private static final int CONTAINER_WORDS = (1 << CONTAINER_BITS) / Long.SIZE;
+
+    private volatile AtomicReferenceArray<AtomicLongArray> containers = new AtomicReferenceArray<>(16);
+    private final LongAdder size = new LongAdder();
+    private final Lock lock = new ReentrantLock();
+
+    // true, если id отмечен этим вызовом; false, если он уже был в множестве
+    public boolean add(long id) {
+        AtomicLongArray words = container(key(id), true);
+        int word = (int) (id >>> 6) & (CONTAINER_WORDS - 1);
+        long mask = 1L << id;
+        long old;
+        do {
+            old = words.get(word);
+            if ((old & mask) != 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(word, old, old | mask));
+        size.increment();
+        return true;
+    }
+
+    public boolean contains(long id) {
+        AtomicLongArray words = container(key(id), false);
+        return words != null && (words.get((int) (id >>> 6) & (CONTAINER_WORDS - 1)) & (1L << id)) != 0;
+    }
+
+    public long size() {
+        return size.sum();
+    }
+
+    // Независимая копия; контейнеры копируются целиком, около 8 КБ на 65536 id
+    public VoterBitmap copy() {
+        VoterBitmap copy = new VoterBitmap();
+        AtomicReferenceArray<AtomicLongArray> current = containers;
+        AtomicReferenceArray<AtomicLongArray> copied = new AtomicReferenceArray<>(current.length());
+        long[] bits = new long[CONTAINER_WORDS];
+        for (int key = 0; key < current.length(); key++) {
+            AtomicLongArray words = current.get(key);
+            if (words != null) {
+                for (int i = 0; i < CONTAINER_WORDS; i++) {
+                    bits[i] = words.get(i);
+                    copy.size.add(Long.bitCount(bits[i]));
+                }
+                copied.set(key, new AtomicLongArray(bits));
+            }
+        }
+        copy.containers = copied;
+        return copy;
+    }
+
+    // Непустые контейнеры целиком: число, затем номер и слова каждого
+    public void write(DataOutputStream out) throws IOException {
+        AtomicReferenceArray<AtomicLongArray> current = containers;
+        int count = 0;
+        for (int key = 0; key < current.length(); key++) {
+            if (current.get(key) != null) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (int key = 0; key < current.length() && count > 0; key++) {
+            AtomicLongArray words = current.get(key);
+            if (words != null) {
+                out.writeInt(key);
+                for (int i = 0; i < CONTAINER_WORDS; i++) {
+                    out.writeLong(words.get(i));
+                }
+                count--;
+            }
+        }
+    }
+
+    public void read(DataInputStream in) throws IOException {
+        for (int count = in.readInt(); count > 0; count--) {
+            AtomicLongArray words = container(in.readInt(), true);
+            for (int i = 0; i < CONTAINER_WORDS; i++) {
+                long bits = in.readLong();
+                words.set(i, words.get(i) | bits);
+                size.add(Long.bitCount(bits));
+            }
+        }
+    }
+
+    private static int key(long id) {
+        long key = id >>> CONTAINER_BITS;
+        if (id < 0 || key >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Voter id out of range: " + id);
+        }
+        return (int) key;
+    }
+
+    // Контейнеры создаются и каталог растет только под блокировкой, поэтому копирование при росте
+    // не теряет контейнер, созданный параллельно
+    private AtomicLongArray container(int key, boolean create) {
+        AtomicReferenceArray<AtomicLongArray> current = containers;
+        AtomicLongArray words = key < current.length() ? current.get(key) : null;
+        if (words != null || !create) {
+            return words;
+        }
+        lock.lock();
+        try {
+            current = containers;
+            if (key >= current.length()) {
+                AtomicReferenceArray<AtomicLongArray> grown =
+                        new AtomicReferenceArray<>((int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * current.length(), key + 1L)));
+                for (int i = 0; i < current.length(); i++) {
+                    grown.set(i, current.get(i));
+                }
+                containers = current = grown;
+            }
+            words = current.get(key);
+            if (words == null) {
+                words = new AtomicLongArray(CONTAINER_WORDS);
+                current.set(key, words);
+            }
+            return words;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+// Уникальные возрастающие id без пропусков. Выдача - один incrementAndGet без блокировок.
+// Отдельная граница на диске не нужна: id используется только в событии журнала, и при загрузке
+// VotingSystem продолжает с наибольшего id из снимка и журнала. Id, выданный перед сбоем, но не
+// попавший в журнал, нигде не сохранен, поэтому выдать его снова безопасно
+class IdGenerator {
+
+    private final AtomicLong last; // последний выданный id
+
+    public IdGenerator(long last) {
+        this.last = new AtomicLong(last);
+    }
+
+    public long nextId() {
+        return last.incrementAndGet();
+    }
+
+    public long lastId() {
+        return last.get();
+    }
+}
+
+interface LedgerWriter {
+    void write(DataOutputStream out) throws IOException;
+}
+
+interface LedgerReader {
+    void read(DataInputStream in) throws IOException;
+}
+
+// Журнал событий с упреждающей записью. События пишутся в сегменты ledger-<номер первого события>.log
+// записями [длина][CRC32][номер события][данные]. Фоновый поток забирает все накопившиеся записи и
+// фиксирует их одним write + force (групповая фиксация): при потоке голосов одна синхронизация с диском
+// приходится на много событий. Событие применяется к состоянию (apply) только после фиксации, тем же потоком
+// в порядке номеров, поэтому в памяти никогда не видно того, чего нет на диске. Снимок snapshot.bin хранит все состояние по некоторому номеру события;
+// после него запись переходит в новый сегмент, а полностью вошедшие в снимок сегменты удаляются,
+// так что при запуске повторяется только хвост журнала. Запись с неверной CRC (оборванная при сбое)
+// и все после нее отбрасываются
+class EventLedger implements Closeable {
+
+    static final long DEFAULT_SNAPSHOT_INTERVAL = 100_000;
+    private static final int SNAPSHOT_MAGIC = 0x56534E31; // "VSN1"
+    private static final int HEADER_BYTES = Integer.BYTES * 2; // длина и CRC32
+    private static final String SEGMENT_PREFIX = "ledger-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final long snapshotInterval;
+    private FileChannel segment;       // текущий сегмент; после recover с ним работает только поток записи
+    private long segmentFirst;         // номер первого события текущего сегмента
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition pendingAvailable = lock.newCondition();
+    private final Condition committed = lock.newCondition();
+    private final Lock snapshotLock = new ReentrantLock();
+    private List<PendingEvent> pending = new ArrayList<>();
+    private long lastSequence;         // номер последнего принятого события
+    private long committedSequence;    // номер последнего события на диске
+    private long snapshotSequence;     // события до этого номера включительно есть в снимке
+    private long rollFrom;             // события с этого номера пишутся в новый сегмент
+    private boolean closed;
+    private IOException failure;
+    private Thread writer;
+
+    public EventLedger(Path directory, long snapshotInterval) throws IOException {
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+        Files.createDirectories(directory);
+    }
+
+    // Загружает снимок и повторяет события после него, затем запускает поток записи
+    public void recover(LedgerReader snapshot, LedgerReader events) throws IOException {
+        Path snapshotFile = directory.resolve("snapshot.bin");
+        if (Files.exists(snapshotFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile), 1 << 16))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Unknown snapshot format: " + snapshotFile);
+                }
+                snapshotSequence = in.readLong();
+                snapshot.read(in);
+            }
+        }
+        lastSequence = snapshotSequence;
+
+        List<Path> segments = listSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            if (!replay(segments.get(i), events)) {
+                for (Path rest : segments.subList(i + 1, segments.size())) {
+                    Files.delete(rest); // После поврежденной записи события не применяются
+                }
+                segments = segments.subList(0, i + 1);
+                break;
+            }
+        }
+        committedSequence = lastSequence;
+        rollFrom = snapshotSequence + 1; // Новые события не дописываются в сегмент, уже вошедший в снимок
+        deleteCoveredSegments(snapshotSequence);
+        segments = listSegments();
+
+        if (segments.isEmpty()) {
+            openSegment(lastSequence + 1);
+        } else {
+            Path last = segments.get(segments.size() - 1);
+            segmentFirst = firstSequence(last);
+            segment = FileChannel.open(last, StandardOpenOption.WRITE);
+            segment.position(segment.size());
+        }
+
+        writer = new Thread(this::writeLoop, "ledger-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Событие, ожидающее записи, и результат его применения
+    private static final class PendingEvent {
+        final byte[] record;
+        final BooleanSupplier apply;
+        boolean applied;
+        RuntimeException error;
+
+        PendingEvent(byte[] record, BooleanSupplier apply) {
+            this.record = record;
+            this.apply = apply;
+        }
+
+        void apply() {
+            try {
+                applied = apply.getAsBoolean();
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+    }
+
+    // Записывает событие, ждет его фиксации на диске и применения (apply) и возвращает результат apply.
+    // false - событие записано, но состояние не изменило; при повторе журнала будет так же.
+    // IOException - событие не зафиксировано и не применено
+    public boolean append(LedgerWriter event, BooleanSupplier apply) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // длина и CRC32 заполняет поток записи
+        out.writeInt(0);
+        out.writeLong(0); // номер события
+        event.write(out);
+        PendingEvent pendingEvent = new PendingEvent(bytes.toByteArray(), apply);
+
+        long sequence;
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Ledger is closed");
+            }
+            if (failure != null) {
+                throw new IOException("Ledger write failed earlier", failure);
+            }
+            sequence = ++lastSequence;
+            ByteBuffer.wrap(pendingEvent.record).putLong(HEADER_BYTES, sequence);
+            pending.add(pendingEvent);
+            pendingAvailable.signal();
+
+            while (committedSequence < sequence && failure == null) {
+                committed.awaitUninterruptibly();
+            }
+            if (committedSequence < sequence) {
+                throw new IOException("Ledger write failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (pendingEvent.error != null) {
+            throw pendingEvent.error;
+        }
+        return pendingEvent.applied;
+    }
+
+    public boolean isSnapshotDue() {
+        lock.lock();
+        try {
+            return lastSequence - snapshotSequence >= snapshotInterval;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Записывает снимок состояния. capture вызывается под блокировкой журнала: события применяются
+    // только под ней, поэтому копия содержит ровно зафиксированные события. capture должен лишь быстро
+    // скопировать состояние - сериализация и запись файла идут уже без блокировки, не задерживая append
+    public void snapshot(Supplier<LedgerWriter> capture) throws IOException {
+        if (!snapshotLock.tryLock()) {
+            return; // Снимок уже делает другой поток
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+            DataOutputStream out = new DataOutputStream(bytes);
+            long sequence;
+            LedgerWriter state;
+            lock.lock();
+            try {
+                sequence = committedSequence;
+                if (sequence == snapshotSequence) {
+                    return;
+                }
+                state = capture.get();
+                rollFrom = sequence + 1;
+            } finally {
+                lock.unlock();
+            }
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(sequence);
+            state.write(out);
+
+            Path temp = directory.resolve("snapshot.tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()));
+                channel.force(true);
+            }
+            Files.move(temp, directory.resolve("snapshot.bin"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            lock.lock();
+            try {
+                snapshotSequence = sequence;
+            } finally {
+                lock.unlock();
+            }
+
+            deleteCoveredSegments(sequence);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // Сегмент целиком в снимке, если следующий начинается не позже sequence + 1; последний не трогаем
+    private void deleteCoveredSegments(long sequence) throws IOException {
+        List<Path> segments = listSegments();
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstSequence(segments.get(i + 1)) <= sequence + 1) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pendingAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (segment != null) {
+            segment.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void writeLoop() {
+        CRC32 crc = new CRC32();
+        while (true) {
+            List<PendingEvent> batch;
+            long roll;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    pendingAvailable.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return; // Журнал закрыт, все события зафиксированы
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                roll = rollFrom;
+            } finally {
+                lock.unlock();
+            }
+
+            long last;
+            try {
+                last = write(batch, roll, crc);
+            } catch (IOException e) {
+                System.out.println("Ошибка записи журнала: " + e.getMessage());
+                lock.lock();
+                try {
+                    failure = e;
+                    committed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+
+            lock.lock();
+            try {
+                for (PendingEvent event : batch) {
+                    event.apply(); // По порядку номеров и под блокировкой: снимок видит только целые пачки
+                }
+                committedSequence = last;
+                committed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Пишет пачку одним вызовом write на сегмент и фиксирует; возвращает номер последнего события
+    private long write(List<PendingEvent> batch, long roll, CRC32 crc) throws IOException {
+        int size = 0;
+        for (PendingEvent event : batch) {
+            size += event.record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        long sequence = 0;
+        for (PendingEvent event : batch) {
+            byte[] record = event.record;
+            ByteBuffer view = ByteBuffer.wrap(record);
+            sequence = view.getLong(HEADER_BYTES);
+            if (segmentFirst < roll && sequence >= roll) {
+                flushBuffer(buffer);
+                segment.close();
+                openSegment(sequence); // Первое событие после снимка начинает новый сегмент
+            }
+            crc.reset();
+            crc.update(record, HEADER_BYTES, record.length - HEADER_BYTES);
+            view.putInt(0, record.length - HEADER_BYTES);
+            view.putInt(Integer.BYTES, (int) crc.getValue());
+            buffer.put(record);
+        }
+        flushBuffer(buffer);
+        return sequence;
+    }
+
+    private void flushBuffer(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        if (buffer.hasRemaining()) {
+            writeFully(segment, buffer);
+            segment.force(false);
+        }
+        buffer.compact();
+    }
+
+    private void openSegment(long first) throws IOException {
+        segmentFirst = first;
+        segment = FileChannel.open(directory.resolve(SEGMENT_PREFIX + String.format("%019d", first) + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segment.position(segment.size());
+    }
+
+    // Повторяет события сегмента после снимка; false - найдена поврежденная запись, сегмент обрезан по ней
+    private boolean replay(Path file, LedgerReader events) throws IOException {
+        long valid = 0;
+        boolean intact = true;
+        CRC32 crc = new CRC32();
+        byte[] record = new byte[256];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break; // Конец сегмента на границе записи
+                }
+                int expected;
+                try {
+                    expected = in.readInt();
+                    if (length < Long.BYTES || length > 1 << 24) {
+                        intact = false;
+                        break;
+                    }
+                    if (record.length < length) {
+                        record = new byte[Math.max(length, record.length * 2)];
+                    }
+                    in.readFully(record, 0, length);
+                } catch (EOFException e) {
+                    intact = false;
+                    break;
+                }
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != expected) {
+                    intact = false;
+                    break;
+                }
+                long sequence = ByteBuffer.wrap(record).getLong(0);
+                if (sequence > lastSequence) {
+                    events.read(new DataInputStream(new ByteArrayInputStream(record, Long.BYTES, length - Long.BYTES)));
+                    lastSequence = sequence;
+                }
+                valid += HEADER_BYTES + length;
+            }
+        }
+        if (!intact) {
+            System.out.println("Журнал " + file.getFileName() + " поврежден после " + valid + " байт, хвост отброшен.");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        return intact;
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        segments.sort(Comparator.comparingLong(EventLedger::firstSequence));
+        return segments;
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
     }
 }